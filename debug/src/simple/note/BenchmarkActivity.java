@@ -0,0 +1,93 @@
+package simple.note;
+
+import android.app.Activity;
+import android.app.ProgressDialog;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.widget.Toast;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+public class BenchmarkActivity extends Activity {
+    private final CancellationSignal cancellationSignal = new CancellationSignal();
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        if (savedInstanceState == null) {
+            startActivityForResult(new Intent(Intent.ACTION_CREATE_DOCUMENT)
+                    .addCategory(Intent.CATEGORY_OPENABLE)
+                    .setType("text/plain")
+                    .putExtra(Intent.EXTRA_TITLE, "benchmark-" + System.currentTimeMillis() + ".txt"), 1);
+        }
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (resultCode == RESULT_OK) {
+            run(data.getData());
+        } else {
+            finish();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (isFinishing()) {
+            cancellationSignal.cancel();
+        }
+    }
+
+    private void run(final Uri uri) {
+        final ProgressDialog dialog = new ProgressDialog(this);
+        dialog.setTitle(R.string.action_benchmark);
+        dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        dialog.setCancelable(false);
+        dialog.setButton(DialogInterface.BUTTON_NEGATIVE, getString(android.R.string.cancel), new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                cancellationSignal.cancel();
+            }
+        });
+        dialog.show();
+        new AsyncTask<Void, Long, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                try (Writer report = new BufferedWriter(new OutputStreamWriter(getContentResolver().openOutputStream(uri, "w"), StandardCharsets.UTF_8))) {
+                    new StorageBenchmark(getApplicationContext(), new DatabaseHelper.ProgressListener() {
+                        @Override
+                        public void onProgress(long done, long total) {
+                            publishProgress(done, total);
+                        }
+                    }, cancellationSignal).run(report);
+                    return true;
+                } catch (IOException | OperationCanceledException e) {
+                    return false;
+                }
+            }
+
+            @Override
+            protected void onProgressUpdate(Long... values) {
+                dialog.setMax((int) (long) values[1]);
+                dialog.setProgress((int) (long) values[0]);
+            }
+
+            @Override
+            protected void onPostExecute(Boolean result) {
+                dialog.dismiss();
+                Toast.makeText(getApplicationContext(), result ? R.string.benchmark_success : R.string.benchmark_fail, Toast.LENGTH_SHORT).show();
+                finish();
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+}
@@ -0,0 +1,611 @@
+package simple.note;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDatabaseLockedException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+import android.util.JsonWriter;
+import android.view.View;
+import android.widget.TextView;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+class StorageBenchmark {
+    private static final int[] CORPUS_SIZES = {10000, 100000, 1000000};
+    private static final int OPERATIONS = 16;
+    private static final int SAMPLES = 1000;
+    private static final int SEARCH_SAMPLES = 200;
+    private static final int SCAN_SAMPLES = 3;
+    private static final int VOCABULARY_SIZE = 20000;
+    private static final int EDITOR_THREADS = 4;
+    private static final int MAX_NOTE_LENGTH = 32 * 1024;
+    private static final long BYTES_PER_NOTE_ESTIMATE = 2 * 1024;
+    private static final String DATABASE_NAME = "benchmark.db";
+    private static final OutputStream NULL_STREAM = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) {
+        }
+    };
+    private final Context context;
+    private final DatabaseHelper.ProgressListener listener;
+    private final CancellationSignal cancellationSignal;
+    private final Random random = new Random(0);
+    private final String[] vocabulary = new String[VOCABULARY_SIZE];
+    private int stage;
+
+    StorageBenchmark(Context context, DatabaseHelper.ProgressListener listener, CancellationSignal cancellationSignal) {
+        this.context = context;
+        this.listener = listener;
+        this.cancellationSignal = cancellationSignal;
+        for (int i = 0; i < VOCABULARY_SIZE; i++) {
+            char[] word = new char[2 + random.nextInt(9)];
+            for (int j = 0; j < word.length; j++) {
+                word[j] = (char) ('a' + random.nextInt(26));
+            }
+            vocabulary[i] = new String(word);
+        }
+    }
+
+    void run(Writer report) throws IOException {
+        report.write(String.format(Locale.US, "%s %s, API %d%n", Build.MANUFACTURER, Build.MODEL, Build.VERSION.SDK_INT));
+        Debug.startAllocCounting();
+        try {
+            for (int size : CORPUS_SIZES) {
+                runCorpus(size, report);
+                report.flush();
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    private void runCorpus(final int size, Writer report) throws IOException {
+        if (context.getCacheDir().getUsableSpace() < size * BYTES_PER_NOTE_ESTIMATE) {
+            report.write(String.format(Locale.US, "%n%,d notes: skipped, not enough free space%n", size));
+            stage += OPERATIONS;
+            return;
+        }
+        final File corpus = new File(context.getCacheDir(), "benchmark.json");
+        context.deleteDatabase(DATABASE_NAME);
+        final DatabaseHelper helper = new DatabaseHelper(context, DATABASE_NAME);
+        try {
+            writeCorpus(corpus, size);
+            report.write(String.format(Locale.US, "%n%,d notes, %,d bytes of JSON, SQLite %s%n", size, corpus.length(),
+                    DatabaseUtils.stringForQuery(helper.getReadableDatabase(), "SELECT sqlite_version();", null)));
+            report.write(String.format(Locale.US, "%-16s %8s %12s %10s %10s %10s %10s %10s %10s%n",
+                    "operation", "samples", "rows/s", "p50 us", "p90 us", "p99 us", "max us", "bytes/op", "objs/op"));
+
+            write(report, measure("restoreFromJSON", 1, size, new Operation() {
+                @Override
+                void run(int i) throws IOException {
+                    try (InputStream stream = new FileInputStream(corpus)) {
+                        if (!helper.restoreFromJSON(stream, DatabaseHelper.DEFAULT_IMPORT_BATCH_SIZE, false, null, cancellationSignal)) {
+                            cancellationSignal.throwIfCanceled();
+                            throw new IOException("restoreFromJSON failed");
+                        }
+                    }
+                }
+            }));
+            write(report, measure("mergeJSON", 1, size, new Operation() {
+                @Override
+                void run(int i) throws IOException {
+                    try (InputStream stream = new FileInputStream(corpus)) {
+                        if (!helper.restoreFromJSON(stream, DatabaseHelper.DEFAULT_IMPORT_BATCH_SIZE, true, null, cancellationSignal)) {
+                            cancellationSignal.throwIfCanceled();
+                            throw new IOException("restoreFromJSON failed");
+                        }
+                    }
+                }
+            }));
+
+            final String[] contents = new String[SAMPLES];
+            final long[] ids = new long[SAMPLES];
+            for (int i = 0; i < SAMPLES; i++) {
+                contents[i] = generateNote();
+                ids[i] = 1 + random.nextInt(size);
+            }
+            write(report, measure("insert", SAMPLES, 1, new Operation() {
+                @Override
+                void run(int i) {
+                    helper.insert(contents[i]);
+                }
+            }));
+            for (int i = 0; i < SAMPLES; i++) {
+                contents[i] = generateNote();
+            }
+            write(report, measure("update", SAMPLES, 1, new Operation() {
+                @Override
+                void run(int i) {
+                    helper.update(ids[i], contents[i]);
+                }
+            }));
+            runPageWrites(helper, ids, report);
+
+            final String[] terms = new String[SEARCH_SAMPLES];
+            for (int i = 0; i < SEARCH_SAMPLES; i++) {
+                String word = pickWord();
+                terms[i] = word.substring(0, Math.min(word.length(), 3));
+            }
+            write(report, measure("search", SEARCH_SAMPLES, 1, new Operation() {
+                @Override
+                void run(int i) {
+                    drain(helper.search(terms[i]));
+                }
+            }));
+            write(report, measure("rankedSearch", SEARCH_SAMPLES, 1, new Operation() {
+                @Override
+                void run(int i) {
+                    drain(helper.queryRankedPage(terms[i], helper.rankMatches(terms[i], null), 0, null));
+                }
+            }));
+            write(report, measure("queryAllRecords", SCAN_SAMPLES, size, new Operation() {
+                @Override
+                void run(int i) {
+                    drain(helper.queryAllRecords());
+                }
+            }));
+            runBinds(helper, report);
+            write(report, measure("dumpAsJSON", 1, size, new Operation() {
+                @Override
+                void run(int i) throws IOException {
+                    if (!helper.dumpAsJSON(NULL_STREAM, null, cancellationSignal)) {
+                        cancellationSignal.throwIfCanceled();
+                        throw new IOException("dumpAsJSON failed");
+                    }
+                }
+            }));
+            write(report, measure("delete", SAMPLES, 1, new Operation() {
+                @Override
+                void run(int i) {
+                    helper.delete(ids[i]);
+                }
+            }));
+            runConcurrently(helper, corpus, terms, report);
+        } finally {
+            helper.close();
+            context.deleteDatabase(DATABASE_NAME);
+            corpus.delete();
+        }
+    }
+
+    private void runBinds(DatabaseHelper helper, Writer report) throws IOException {
+        final Cursor rows = helper.queryAllRecords();
+        List<Cursor> pages = new ArrayList<>();
+        try {
+            final int count = Math.min(rows.getCount(), SAMPLES);
+            for (int i = 0; i < count; i++) {
+                rows.moveToPosition(i);
+                rows.getString(3);
+            }
+            Cursor page = helper.queryFirstPage();
+            pages.add(page);
+            OverlayCursor list = new OverlayCursor(page);
+            while (list.getCount() < count && page.getCount() == DatabaseHelper.PAGE_SIZE && page.moveToLast()) {
+                page = helper.queryPageBefore(page.getLong(2), page.getLong(0));
+                pages.add(page);
+                list = list.append(page, Collections.<Long>emptySet());
+            }
+            final Cursor previews = list;
+            for (int i = 0; i < count; i++) {
+                previews.moveToPosition(i);
+                previews.getString(3);
+            }
+            final DatabaseHelper.Adapter adapter = new DatabaseHelper.Adapter(context, helper);
+            final View view = adapter.newView(context, rows, null);
+            final TextView text = (TextView) view.findViewById(R.id.text);
+            final TextView timeStamp = (TextView) view.findViewById(R.id.time_stamp);
+            final int widthMeasureSpec = View.MeasureSpec.makeMeasureSpec(context.getResources().getDisplayMetrics().widthPixels, View.MeasureSpec.EXACTLY);
+            final int heightMeasureSpec = View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED);
+            write(report, measure("bindFullText", SAMPLES, 1, new Operation() {
+                @Override
+                void run(int i) {
+                    rows.moveToPosition(i % count);
+                    timeStamp.setText(DateUtils.formatDateTime(context, rows.getLong(1), DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME));
+                    text.setText(rows.getString(3));
+                    view.measure(widthMeasureSpec, heightMeasureSpec);
+                }
+            }));
+            write(report, measure("bindPreview", SAMPLES, 1, new Operation() {
+                @Override
+                void run(int i) {
+                    previews.moveToPosition(i % count);
+                    adapter.bindView(view, context, previews);
+                    view.measure(widthMeasureSpec, heightMeasureSpec);
+                }
+            }));
+        } finally {
+            rows.close();
+            for (Cursor page : pages) {
+                page.close();
+            }
+        }
+    }
+
+    private void runPageWrites(final DatabaseHelper helper, final long[] ids, Writer report) throws IOException {
+        final SQLiteDatabase database = helper.getWritableDatabase();
+        final SQLiteStatement writeContent = database.compileStatement("UPDATE DATA\n" +
+                "SET CONTENT = ?\n" +
+                "WHERE _id = ?;");
+        final SQLiteStatement touchTime = database.compileStatement("UPDATE DATA\n" +
+                "SET CONTENT = CONTENT,\n" +
+                "  LAST_WRITE_TIME_UTC = CAST((JULIANDAY('now') - 2440587.5) * 86400000 AS INTEGER)\n" +
+                "WHERE _id = ?;");
+        final String[] contents = new String[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            contents[i] = generateNote();
+        }
+        Operation legacy = new Operation() {
+            @Override
+            void run(int i) {
+                database.beginTransaction();
+                try {
+                    writeContent.bindString(1, contents[i]);
+                    writeContent.bindLong(2, ids[i]);
+                    writeContent.executeUpdateDelete();
+                    touchTime.bindLong(1, ids[i]);
+                    touchTime.executeUpdateDelete();
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+            }
+        };
+        Operation current = new Operation() {
+            @Override
+            void run(int i) {
+                helper.update(ids[i], contents[i]);
+            }
+        };
+        try {
+            long[] pages = new long[4];
+            helper.checkpoint(true);
+            write(report, measure("editLegacy", SAMPLES, 1, legacy));
+            pages[0] = walFrames(database);
+            for (int i = 0; i < SAMPLES; i++) {
+                contents[i] = generateNote();
+            }
+            helper.checkpoint(true);
+            write(report, measure("edit", SAMPLES, 1, current));
+            pages[1] = walFrames(database);
+            helper.checkpoint(true);
+            write(report, measure("saveLegacy", SAMPLES, 1, legacy));
+            pages[2] = walFrames(database);
+            helper.checkpoint(true);
+            write(report, measure("saveUnchanged", SAMPLES, 1, current));
+            pages[3] = walFrames(database);
+            report.write(String.format(Locale.US, "  WAL pages per edit: %.1f legacy, %.1f now; per unchanged save: %.1f legacy, %.1f now%n",
+                    pages[0] / (double) SAMPLES, pages[1] / (double) SAMPLES, pages[2] / (double) SAMPLES, pages[3] / (double) SAMPLES));
+        } finally {
+            writeContent.close();
+            touchTime.close();
+        }
+    }
+
+    private static long walFrames(SQLiteDatabase database) {
+        try (Cursor cursor = database.rawQuery("PRAGMA wal_checkpoint(PASSIVE);", null)) {
+            return cursor.moveToFirst() ? cursor.getLong(1) : 0;
+        }
+    }
+
+    private void runConcurrently(final DatabaseHelper helper, final File corpus, final String[] terms, Writer report) throws IOException {
+        final AtomicBoolean importing = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicInteger exports = new AtomicInteger();
+        final long[][] latencies = new long[EDITOR_THREADS][];
+        final int[] edits = new int[EDITOR_THREADS];
+        final long[] editedIds = new long[EDITOR_THREADS];
+        final String[] lastWrites = new String[EDITOR_THREADS];
+        final long[][] readLatencies = new long[2][];
+        final int[] reads = new int[2];
+        final AtomicInteger lostWrites = new AtomicInteger();
+        final AtomicInteger lockErrors = new AtomicInteger();
+        final AtomicInteger inconsistentPages = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        threads.add(new Thread() {
+            @Override
+            public void run() {
+                try (InputStream stream = new FileInputStream(corpus)) {
+                    helper.restoreFromJSON(stream, DatabaseHelper.DEFAULT_IMPORT_BATCH_SIZE, false, null, cancellationSignal);
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    importing.set(false);
+                }
+            }
+        });
+        threads.add(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (importing.get() && !cancellationSignal.isCanceled()) {
+                        helper.dumpAsJSON(NULL_STREAM, null, cancellationSignal);
+                        exports.incrementAndGet();
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        });
+        threads.add(sampleWhileImporting(importing, failure, readLatencies, reads, 0, new Operation() {
+            @Override
+            void run(int i) {
+                if (!listIsConsistent(helper)) {
+                    inconsistentPages.incrementAndGet();
+                }
+            }
+        }));
+        threads.add(sampleWhileImporting(importing, failure, readLatencies, reads, 1, new Operation() {
+            @Override
+            void run(int i) {
+                drain(helper.search(terms[i % terms.length]));
+            }
+        }));
+        for (int t = 0; t < EDITOR_THREADS; t++) {
+            final int editor = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    long[] samples = new long[SAMPLES];
+                    int count = 0;
+                    try {
+                        long id = helper.insert("editor " + editor);
+                        editedIds[editor] = id;
+                        lastWrites[editor] = "editor " + editor;
+                        while (importing.get() && !cancellationSignal.isCanceled()) {
+                            String content = "editor " + editor + " revision " + count;
+                            long start = SystemClock.elapsedRealtimeNanos();
+                            try {
+                                if (helper.update(id, content) != 0) {
+                                    lastWrites[editor] = content;
+                                } else {
+                                    lostWrites.incrementAndGet();
+                                }
+                            } catch (SQLiteDatabaseLockedException e) {
+                                lockErrors.incrementAndGet();
+                            }
+                            String stored = helper.getContentOfOneRecord(id);
+                            if (count == samples.length) {
+                                samples = Arrays.copyOf(samples, count * 2);
+                            }
+                            samples[count++] = SystemClock.elapsedRealtimeNanos() - start;
+                            if (!lastWrites[editor].equals(stored)) {
+                                lostWrites.incrementAndGet();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                    latencies[editor] = samples;
+                    edits[editor] = count;
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        cancellationSignal.throwIfCanceled();
+        for (int t = 0; t < EDITOR_THREADS; t++) {
+            if (lastWrites[t] != null && !lastWrites[t].equals(helper.getContentOfOneRecord(editedIds[t]))) {
+                lostWrites.incrementAndGet();
+            }
+        }
+        int total = 0;
+        for (int count : edits) {
+            total += count;
+        }
+        Measurement measurement = new Measurement("concurrentEdit", Math.max(total, 1), 1);
+        for (int t = 0, position = 0; t < EDITOR_THREADS; t++) {
+            System.arraycopy(latencies[t], 0, measurement.latencies, position, edits[t]);
+            position += edits[t];
+        }
+        write(report, measurement);
+        String[] readNames = {"listUnderImport", "searchUnderImport"};
+        for (int r = 0; r < readNames.length; r++) {
+            Measurement reading = new Measurement(readNames[r], Math.max(reads[r], 1), 1);
+            System.arraycopy(readLatencies[r], 0, reading.latencies, 0, reads[r]);
+            write(report, reading);
+        }
+        report.write(String.format(Locale.US, "  %d editors and 2 readers alongside an import and %d full exports: %s%n",
+                EDITOR_THREADS, exports.get(), failure.get() == null ? "no errors" : failure.get().toString()));
+        report.write(String.format(Locale.US, "  %s: %d lost writes, %d lock errors, %d inconsistent lists%n",
+                lostWrites.get() + lockErrors.get() + inconsistentPages.get() == 0 ? "PASS" : "FAIL",
+                lostWrites.get(), lockErrors.get(), inconsistentPages.get()));
+        if (listener != null) {
+            listener.onProgress(++stage, CORPUS_SIZES.length * OPERATIONS);
+        }
+    }
+
+    private Thread sampleWhileImporting(final AtomicBoolean importing, final AtomicReference<Throwable> failure,
+                                        final long[][] latencies, final int[] counts, final int slot, final Operation operation) {
+        return new Thread() {
+            @Override
+            public void run() {
+                long[] samples = new long[SAMPLES];
+                int count = 0;
+                try {
+                    while (importing.get() && !cancellationSignal.isCanceled()) {
+                        long start = SystemClock.elapsedRealtimeNanos();
+                        operation.run(count);
+                        if (count == samples.length) {
+                            samples = Arrays.copyOf(samples, count * 2);
+                        }
+                        samples[count++] = SystemClock.elapsedRealtimeNanos() - start;
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+                latencies[slot] = samples;
+                counts[slot] = count;
+            }
+        };
+    }
+
+    private static boolean listIsConsistent(DatabaseHelper helper) {
+        List<Cursor> pages = new ArrayList<>();
+        try {
+            Cursor page = helper.queryFirstPage();
+            pages.add(page);
+            OverlayCursor list = new OverlayCursor(page);
+            if (page.getCount() == DatabaseHelper.PAGE_SIZE && page.moveToLast()) {
+                page = helper.queryPageBefore(page.getLong(2), page.getLong(0));
+                pages.add(page);
+                list = list.append(page, Collections.<Long>emptySet());
+            }
+            Set<Long> ids = new HashSet<>();
+            long previousTime = Long.MAX_VALUE;
+            long previousId = Long.MAX_VALUE;
+            for (int i = 0; i < list.getCount(); i++) {
+                list.moveToPosition(i);
+                long id = list.getLong(0);
+                long lastWriteTimeUTC = list.getLong(2);
+                if (!ids.add(id) || lastWriteTimeUTC > previousTime || lastWriteTimeUTC == previousTime && id >= previousId) {
+                    return false;
+                }
+                previousTime = lastWriteTimeUTC;
+                previousId = id;
+            }
+            return true;
+        } finally {
+            for (Cursor page : pages) {
+                page.close();
+            }
+        }
+    }
+
+    private void writeCorpus(File file, int size) throws IOException {
+        long now = System.currentTimeMillis();
+        try (JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)))) {
+            writer.beginArray();
+            for (int i = 0; i < size; i++) {
+                long creationTimeUTC = now - (long) (random.nextDouble() * 3 * 365 * 86400000L);
+                writer.beginObject();
+                writer.name("creation_time_utc");
+                writer.value(creationTimeUTC);
+                writer.name("last_write_time_utc");
+                writer.value(creationTimeUTC + (long) (random.nextDouble() * (now - creationTimeUTC)));
+                writer.name("content");
+                writer.value(generateNote());
+                writer.endObject();
+                if (i % 1000 == 0) {
+                    cancellationSignal.throwIfCanceled();
+                }
+            }
+            writer.endArray();
+        }
+    }
+
+    private String generateNote() {
+        int length = (int) Math.min(Math.exp(5 + random.nextGaussian()), MAX_NOTE_LENGTH);
+        StringBuilder note = new StringBuilder(length + 16);
+        while (note.length() < length) {
+            if (note.length() != 0) {
+                note.append(random.nextInt(12) == 0 ? '\n' : ' ');
+            }
+            note.append(pickWord());
+        }
+        return note.toString();
+    }
+
+    private String pickWord() {
+        return vocabulary[(int) Math.pow(VOCABULARY_SIZE, random.nextDouble()) - 1];
+    }
+
+    private static void drain(Cursor cursor) {
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getString(3);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Measurement measure(String name, int samples, int rowsPerSample, Operation operation) throws IOException {
+        Measurement measurement = new Measurement(name, samples, rowsPerSample);
+        Debug.resetThreadAllocCount();
+        for (int i = 0; i < samples; i++) {
+            cancellationSignal.throwIfCanceled();
+            long start = SystemClock.elapsedRealtimeNanos();
+            operation.run(i);
+            measurement.latencies[i] = SystemClock.elapsedRealtimeNanos() - start;
+        }
+        measurement.allocatedBytes = Debug.getThreadAllocSize();
+        measurement.allocatedObjects = Debug.getThreadAllocCount();
+        if (listener != null) {
+            listener.onProgress(++stage, CORPUS_SIZES.length * OPERATIONS);
+        }
+        return measurement;
+    }
+
+    private static void write(Writer report, Measurement measurement) throws IOException {
+        long[] latencies = measurement.latencies;
+        long total = 0;
+        for (long latency : latencies) {
+            total += latency;
+        }
+        Arrays.sort(latencies);
+        report.write(String.format(Locale.US, "%-16s %8d %12.0f %10d %10d %10d %10d %10d %10d%n",
+                measurement.name,
+                latencies.length,
+                latencies.length * (double) measurement.rowsPerSample * 1e9 / Math.max(total, 1),
+                percentile(latencies, 0.5) / 1000,
+                percentile(latencies, 0.9) / 1000,
+                percentile(latencies, 0.99) / 1000,
+                latencies[latencies.length - 1] / 1000,
+                measurement.allocatedBytes / latencies.length,
+                measurement.allocatedObjects / latencies.length));
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted[Math.max((int) Math.ceil(fraction * sorted.length) - 1, 0)];
+    }
+
+    private static abstract class Operation {
+        abstract void run(int i) throws IOException;
+    }
+
+    private static class Measurement {
+        final String name;
+        final long[] latencies;
+        final int rowsPerSample;
+        long allocatedBytes;
+        long allocatedObjects;
+
+        Measurement(String name, int samples, int rowsPerSample) {
+            this.name = name;
+            this.latencies = new long[samples];
+            this.rowsPerSample = rowsPerSample;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package simple.note;
+
+import android.os.Handler;
+import android.text.Editable;
+import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.TextWatcher;
+import android.text.style.URLSpan;
+import android.text.util.Linkify;
+import android.widget.TextView;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class Autosave implements TextWatcher {
+    private static final long IDLE_DELAY = 2000;
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor();
+    private static final ExecutorService LINKER = Executors.newSingleThreadExecutor();
+    private static final Runnable NOTHING = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+    private final DatabaseHelper helper;
+    private TextView text;
+    private final Handler handler = new Handler();
+    private final Runnable idleFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+    private final Runnable write = new Runnable() {
+        @Override
+        public void run() {
+            final String content;
+            synchronized (Autosave.this) {
+                content = pending;
+                pending = null;
+            }
+            try {
+                boolean written = true;
+                if (id == -1) {
+                    id = helper.insert(content);
+                } else {
+                    written = helper.update(id, content) != 0;
+                }
+                if (written) {
+                    final long linked = id;
+                    LINKER.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            helper.replaceLinks(linked, content, extractLinks(content));
+                        }
+                    });
+                }
+                helper.checkpoint(false);
+            } finally {
+                synchronized (Autosave.this) {
+                    if (pending == null) {
+                        writing = false;
+                    }
+                }
+            }
+        }
+    };
+    private volatile long id;
+    private String pending;
+    private boolean writing;
+    private boolean dirty;
+    private boolean changed;
+
+    public Autosave(DatabaseHelper helper, long id, TextView text) {
+        this.helper = helper;
+        this.id = id;
+        this.text = text;
+    }
+
+    public static void awaitWrites() {
+        try {
+            WRITER.submit(NOTHING).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String[] extractLinks(CharSequence content) {
+        Spannable spannable = new SpannableString(content);
+        Linkify.addLinks(spannable, Linkify.ALL);
+        URLSpan[] spans = spannable.getSpans(0, spannable.length(), URLSpan.class);
+        String[] urls = new String[spans.length];
+        for (int i = 0; i < spans.length; i++) {
+            urls[i] = spans[i].getURL();
+        }
+        return urls;
+    }
+
+    public void attach(TextView text) {
+        this.text.removeTextChangedListener(this);
+        this.text = text;
+    }
+
+    public void start() {
+        text.addTextChangedListener(this);
+    }
+
+    public boolean hasChanges() {
+        return changed;
+    }
+
+    public synchronized boolean isDirty() {
+        return dirty || writing;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public boolean flush() {
+        handler.removeCallbacks(idleFlush);
+        if (!dirty) {
+            return false;
+        }
+        dirty = false;
+        changed = true;
+        String content = text.getText().toString();
+        boolean scheduled;
+        synchronized (this) {
+            scheduled = pending != null;
+            pending = content;
+            writing = true;
+        }
+        if (!scheduled) {
+            WRITER.execute(write);
+        }
+        return true;
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+    }
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+        dirty = true;
+        handler.removeCallbacks(idleFlush);
+        handler.postDelayed(idleFlush, IDLE_DELAY);
+    }
+}
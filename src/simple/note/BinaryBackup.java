@@ -0,0 +1,329 @@
+package simple.note;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+class BinaryBackup {
+    static final int NOTE = 1;
+    static final int DELETED = 2;
+    static final Watermark FULL = new Watermark(Long.MIN_VALUE, 0);
+    private static final int MAGIC = 0x534e424b;
+    private static final int VERSION = 2;
+    private static final int BLOCK_SIZE = 256 * 1024;
+
+    static class Watermark {
+        final long time;
+        final long id;
+
+        Watermark(long time, long id) {
+            this.time = time;
+            this.id = id;
+        }
+
+        boolean isFull() {
+            return time == FULL.time;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Watermark && ((Watermark) o).time == time && ((Watermark) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (time ^ (time >>> 32) ^ id ^ (id >>> 32));
+        }
+    }
+
+    static class Writer implements Closeable {
+        private final DataOutputStream output;
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private int blockSize;
+        private final DataOutputStream records = new DataOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                block[blockSize++] = (byte) b;
+                if (blockSize == BLOCK_SIZE) {
+                    flushBlock();
+                }
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int count) throws IOException {
+                while (count > 0) {
+                    int length = Math.min(count, BLOCK_SIZE - blockSize);
+                    System.arraycopy(buffer, offset, block, blockSize, length);
+                    blockSize += length;
+                    offset += length;
+                    count -= length;
+                    if (blockSize == BLOCK_SIZE) {
+                        flushBlock();
+                    }
+                }
+            }
+        });
+        private final OutputStream segments = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                records.writeInt(1);
+                records.write(b);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int count) throws IOException {
+                if (count > 0) {
+                    records.writeInt(count);
+                    records.write(buffer, offset, count);
+                }
+            }
+        };
+        private final char[] chars = new char[8192];
+        private final Deflater deflater = new Deflater();
+        private final CRC32 crc = new CRC32();
+        private byte[] compressed = new byte[BLOCK_SIZE];
+
+        Writer(OutputStream stream, Watermark base, Watermark watermark) throws IOException {
+            output = new DataOutputStream(new BufferedOutputStream(stream));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(base.time);
+            output.writeLong(base.id);
+            output.writeLong(watermark.time);
+            output.writeLong(watermark.id);
+        }
+
+        void writeNote(long id, long creationTimeUTC, long lastWriteTimeUTC, String content) throws IOException {
+            writeNoteHeader(id, creationTimeUTC, lastWriteTimeUTC);
+            if (content == null) {
+                records.writeInt(-1);
+                return;
+            }
+            segments.write(content.getBytes(StandardCharsets.UTF_8));
+            records.writeInt(0);
+        }
+
+        void writeNote(long id, long creationTimeUTC, long lastWriteTimeUTC, java.io.Reader content) throws IOException {
+            writeNoteHeader(id, creationTimeUTC, lastWriteTimeUTC);
+            OutputStreamWriter encoder = new OutputStreamWriter(segments, StandardCharsets.UTF_8);
+            int count;
+            while ((count = content.read(chars)) != -1) {
+                encoder.write(chars, 0, count);
+            }
+            encoder.flush();
+            records.writeInt(0);
+        }
+
+        private void writeNoteHeader(long id, long creationTimeUTC, long lastWriteTimeUTC) throws IOException {
+            records.writeByte(NOTE);
+            records.writeLong(id);
+            records.writeLong(creationTimeUTC);
+            records.writeLong(lastWriteTimeUTC);
+        }
+
+        void writeDeleted(long id, long deletedTimeUTC) throws IOException {
+            records.writeByte(DELETED);
+            records.writeLong(id);
+            records.writeLong(deletedTimeUTC);
+        }
+
+        private void flushBlock() throws IOException {
+            crc.reset();
+            crc.update(block, 0, blockSize);
+            deflater.reset();
+            deflater.setInput(block, 0, blockSize);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == compressed.length) {
+                    byte[] grown = new byte[compressed.length * 2];
+                    System.arraycopy(compressed, 0, grown, 0, length);
+                    compressed = grown;
+                }
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            output.writeInt(blockSize);
+            output.writeInt(length);
+            output.writeInt((int) crc.getValue());
+            output.write(compressed, 0, length);
+            blockSize = 0;
+        }
+
+        void finish() throws IOException {
+            if (blockSize != 0) {
+                flushBlock();
+            }
+            output.writeInt(0);
+            output.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            deflater.end();
+            output.close();
+        }
+    }
+
+    static class Reader implements Closeable {
+        final Watermark base;
+        final Watermark watermark;
+        int type;
+        long id;
+        long creationTimeUTC;
+        long lastWriteTimeUTC;
+        long deletedTimeUTC;
+        String content;
+        private final DataInputStream input;
+        private final int version;
+        private final Inflater inflater = new Inflater();
+        private final CRC32 crc = new CRC32();
+        private final DataInputStream records = new DataInputStream(new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] buffer = new byte[1];
+                return read(buffer, 0, 1) == -1 ? -1 : buffer[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                while (raw == null || position == raw.length) {
+                    raw = readBlock();
+                    position = 0;
+                    if (raw == null) {
+                        return -1;
+                    }
+                }
+                int length = Math.min(count, raw.length - position);
+                System.arraycopy(raw, position, buffer, offset, length);
+                position += length;
+                return length;
+            }
+        });
+        private byte[] raw;
+        private int position;
+        private DataInputStream block;
+        private byte[] text = new byte[BLOCK_SIZE];
+
+        Reader(InputStream stream) throws IOException {
+            input = new DataInputStream(new BufferedInputStream(stream));
+            if (input.readInt() != MAGIC) {
+                throw new IOException("Not a backup file");
+            }
+            version = input.readInt();
+            if (version != VERSION && version != 1) {
+                throw new IOException("Unsupported backup version " + version);
+            }
+            base = new Watermark(input.readLong(), input.readLong());
+            watermark = new Watermark(input.readLong(), input.readLong());
+        }
+
+        boolean next() throws IOException {
+            if (version == 1) {
+                return nextRecordInBlock();
+            }
+            int type = records.read();
+            if (type == -1) {
+                return false;
+            }
+            this.type = type;
+            id = records.readLong();
+            switch (type) {
+                case NOTE:
+                    creationTimeUTC = records.readLong();
+                    lastWriteTimeUTC = records.readLong();
+                    int length = records.readInt();
+                    if (length < 0) {
+                        content = null;
+                        break;
+                    }
+                    int size = 0;
+                    while (length != 0) {
+                        if (size + length > text.length) {
+                            byte[] grown = new byte[Math.max(text.length * 2, size + length)];
+                            System.arraycopy(text, 0, grown, 0, size);
+                            text = grown;
+                        }
+                        records.readFully(text, size, length);
+                        size += length;
+                        length = records.readInt();
+                    }
+                    content = new String(text, 0, size, StandardCharsets.UTF_8);
+                    break;
+                case DELETED:
+                    deletedTimeUTC = records.readLong();
+                    break;
+                default:
+                    throw new IOException("Unknown record type " + type);
+            }
+            return true;
+        }
+
+        private boolean nextRecordInBlock() throws IOException {
+            while (block == null || block.available() == 0) {
+                byte[] raw = readBlock();
+                if (raw == null) {
+                    return false;
+                }
+                block = new DataInputStream(new ByteArrayInputStream(raw));
+            }
+            byte[] record = new byte[block.readInt()];
+            block.readFully(record);
+            DataInputStream recordInput = new DataInputStream(new ByteArrayInputStream(record));
+            type = recordInput.readUnsignedByte();
+            id = recordInput.readLong();
+            switch (type) {
+                case NOTE:
+                    creationTimeUTC = recordInput.readLong();
+                    lastWriteTimeUTC = recordInput.readLong();
+                    int length = recordInput.readInt();
+                    if (length < 0) {
+                        content = null;
+                    } else {
+                        byte[] bytes = new byte[length];
+                        recordInput.readFully(bytes);
+                        content = new String(bytes, StandardCharsets.UTF_8);
+                    }
+                    break;
+                case DELETED:
+                    deletedTimeUTC = recordInput.readLong();
+                    break;
+            }
+            return true;
+        }
+
+        private byte[] readBlock() throws IOException {
+            int rawLength = input.readInt();
+            if (rawLength == 0) {
+                return null;
+            }
+            byte[] compressed = new byte[input.readInt()];
+            int checksum = input.readInt();
+            input.readFully(compressed);
+            byte[] raw = new byte[rawLength];
+            inflater.reset();
+            inflater.setInput(compressed);
+            try {
+                if (inflater.inflate(raw) != rawLength || !inflater.finished()) {
+                    throw new IOException("Corrupted block");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            }
+            crc.reset();
+            crc.update(raw, 0, raw.length);
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("Checksum mismatch");
+            }
+            return raw;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            input.close();
+        }
+    }
+}
@@ -1,13 +1,29 @@
 package simple.note;
 
 import android.content.Context;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
+import android.graphics.Typeface;
+import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.format.DateFormat;
 import android.text.format.DateUtils;
+import android.text.style.StyleSpan;
 import android.util.JsonReader;
 import android.util.JsonWriter;
+import android.util.LongSparseArray;
+import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -15,38 +31,81 @@ import android.widget.CursorAdapter;
 import android.widget.TextView;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class DatabaseHelper extends SQLiteOpenHelper {
+    private static final int DATABASE_VERSION = 8;
+    public static final int PREVIEW_LENGTH = 200;
+    public static final int PAGE_SIZE = 100;
+    public static final char SNIPPET_START = '\u0002';
+    public static final char SNIPPET_END = '\u0003';
+    private static final int SNIPPET_TOKENS = 24;
+    private static final double BM25_K1 = 1.2;
+    private static final double BM25_B = 0.75;
+    private static final int EXPORT_CHUNK_SIZE = 256;
+    private static final int EXPORT_BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_IMPORT_BATCH_SIZE = 500;
+    private static final int DELETE_BATCH_SIZE = 500;
+    private static final int PURGE_BATCH_SIZE = 200;
+    private static final int CONTENT_CACHE_SIZE = 512 * 1024;
+    private static final int JOURNAL_SIZE_LIMIT = 512 * 1024;
+    private static final int LARGE_NOTE_THRESHOLD = 256 * 1024;
+    private static final int CHUNK_LENGTH = 64 * 1024;
+    private static final int MERGE_PAGES = 256;
+    private static final int MERGE_STEPS = 16;
+    private static final int OPTIMIZE_SEGMENT_THRESHOLD = 32;
+    private static final int VACUUM_PAGES = 1024;
+    private static final int MAINTENANCE_REPORTS = 8;
+    private static final String SYNC_INDEX_AFTER_INSERT = "CREATE TRIGGER IF NOT EXISTS [SYNC INDEX AFTER INSERT] AFTER INSERT ON DATA\n" +
+            "  WHEN new.CHUNK_COUNT = 0\n" +
+            "BEGIN\n" +
+            "  INSERT INTO [INDEX] (ROWID, CONTENT) VALUES (new.ROWID, new.CONTENT);\n" +
+            "END;";
     private static DatabaseHelper instance;
-    private SQLiteStatement insertStatement;
-    private SQLiteStatement deleteStatement;
-    private SQLiteStatement getContentOfOneRecordStatement;
-    private SQLiteStatement restoreStatement;
-    private SQLiteStatement updateStatement;
-
-    private DatabaseHelper(Context context) {
-        super(context, "data.db", null, 1);
-        SQLiteDatabase database = getWritableDatabase();
-        insertStatement = database.compileStatement("INSERT INTO DATA (CONTENT) VALUES (?);");
-        updateStatement = database.compileStatement("UPDATE DATA\n" +
-                "SET CONTENT = ?\n" +
-                "WHERE _id = ?;");
-        restoreStatement = database.compileStatement("INSERT INTO DATA (CREATION_TIME_UTC, LAST_WRITE_TIME_UTC, CONTENT) VALUES (?, ?, ?);");
-        deleteStatement = database.compileStatement("DELETE FROM DATA\n" +
-                "WHERE _id = ?;");
-        getContentOfOneRecordStatement = database.compileStatement("SELECT CONTENT\n" +
-                "FROM DATA\n" +
-                "WHERE _id = ?\n" +
-                "LIMIT 1;");
+    private final AtomicLong writeGeneration = new AtomicLong();
+    private final QueryMetrics metrics = new QueryMetrics();
+    private final LruCache<Long, String> contentCache = new LruCache<Long, String>(CONTENT_CACHE_SIZE) {
+        @Override
+        protected int sizeOf(Long key, String value) {
+            return value.length() + 1;
+        }
+    };
+    private final ThreadLocal<Statements> statements = new ThreadLocal<>();
+    private final List<ChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Deque<String> maintenanceReports = new ArrayDeque<>();
+    private volatile long writerAutoCheckpoint = -1;
+
+    DatabaseHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
     }
 
-    public static DatabaseHelper getInstance(Context context) {
+    public static synchronized DatabaseHelper getInstance(Context context) {
         if (instance == null) {
-            instance = new DatabaseHelper(context);
+            instance = new DatabaseHelper(context.getApplicationContext(), "data.db");
         }
         return instance;
     }
 
+    private Statements statements() {
+        SQLiteDatabase database = getWritableDatabase();
+        Statements statements = this.statements.get();
+        if (statements == null || statements.database != database) {
+            statements = new Statements(database);
+            this.statements.set(statements);
+        }
+        return statements;
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL("CREATE TABLE DATA (\n" +
@@ -77,150 +136,1585 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("CREATE TRIGGER [SYNC INDEX AFTER INSERT] AFTER INSERT ON DATA BEGIN\n" +
                 "  INSERT INTO [INDEX] (ROWID, CONTENT) VALUES (new.ROWID, new.CONTENT);\n" +
                 "END;");
+        onUpgrade(db, 1, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        if (db.getVersion() == 0) {
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL;");
+            db.execSQL("VACUUM;");
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        if (db.isReadOnly()) {
+            return;
+        }
+        db.beginTransaction();
+        try {
+            DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint = 0;", null);
+            DatabaseUtils.longForQuery(db, "PRAGMA journal_size_limit = " + JOURNAL_SIZE_LIMIT + ";", null);
+            writerAutoCheckpoint = DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint;", null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (DatabaseUtils.queryNumEntries(db, "sqlite_master", "type = 'trigger' AND name = 'SYNC INDEX AFTER INSERT'") == 0) {
+            resumeIndexing(db);
+        }
+    }
+
+    private static void suspendIndexing(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS [SYNC INDEX AFTER INSERT];");
+    }
+
+    private static void resumeIndexing(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            db.execSQL(SYNC_INDEX_AFTER_INSERT);
+            db.execSQL("INSERT INTO [INDEX] ([INDEX]) VALUES ('rebuild');");
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL("DROP TABLE IF EXISTS DATA;");
-        db.execSQL("DROP TABLE IF EXISTS [INDEX];");
-        db.execSQL("DROP VIEW IF EXISTS [ALL DATA];");
-        db.execSQL("DROP TABLE IF EXISTS [TEXT DATA];");
-        db.execSQL("DROP TABLE IF EXISTS METADATA;");
-        onCreate(db);
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            migrate(db, version);
+        }
+    }
+
+    private static void migrate(SQLiteDatabase db, int version) {
+        switch (version) {
+            case 2:
+                db.execSQL("CREATE INDEX [DATA BY LAST WRITE TIME] ON DATA (LAST_WRITE_TIME_UTC, _id);");
+                break;
+            case 3:
+                db.execSQL("DROP TRIGGER [AUTO UPDATE TIME];");
+                db.execSQL("DROP TRIGGER [SYNC INDEX BEFORE UPDATE];");
+                db.execSQL("DROP TRIGGER [SYNC INDEX AFTER UPDATE];");
+                db.execSQL("CREATE TRIGGER [SYNC INDEX BEFORE UPDATE] BEFORE UPDATE OF CONTENT ON DATA BEGIN\n" +
+                        "  DELETE FROM [INDEX]\n" +
+                        "  WHERE ROWID = old.rowid;\n" +
+                        "END;");
+                db.execSQL("CREATE TRIGGER [SYNC INDEX AFTER UPDATE] AFTER UPDATE OF CONTENT ON DATA BEGIN\n" +
+                        "  INSERT INTO [INDEX] (ROWID, CONTENT) VALUES (new.ROWID, new.CONTENT);\n" +
+                        "END;");
+                break;
+            case 4:
+                db.execSQL("ALTER TABLE DATA ADD COLUMN DELETED_TIME_UTC INTEGER;");
+                db.execSQL("CREATE INDEX [DATA BY DELETED TIME] ON DATA (DELETED_TIME_UTC);");
+                break;
+            case 5:
+                db.execSQL("ALTER TABLE DATA ADD COLUMN CHUNK_COUNT INTEGER DEFAULT 0 NOT NULL;");
+                db.execSQL("CREATE TABLE CHUNK (\n" +
+                        "  NOTE_ID  INTEGER NOT NULL,\n" +
+                        "  SEQUENCE INTEGER NOT NULL,\n" +
+                        "  CONTENT  TEXT    NOT NULL,\n" +
+                        "  PRIMARY KEY (NOTE_ID, SEQUENCE)\n" +
+                        ");");
+                db.execSQL("DROP TRIGGER [SYNC INDEX BEFORE UPDATE];");
+                db.execSQL("DROP TRIGGER [SYNC INDEX BEFORE DELETE];");
+                db.execSQL("DROP TRIGGER [SYNC INDEX AFTER UPDATE];");
+                db.execSQL("DROP TRIGGER IF EXISTS [SYNC INDEX AFTER INSERT];");
+                db.execSQL("DROP TABLE [INDEX];");
+                splitLargeNotes(db);
+                db.execSQL("CREATE VIEW [FULL TEXT] AS\n" +
+                        "  SELECT\n" +
+                        "    _id AS ROWID,\n" +
+                        "    CASE CHUNK_COUNT\n" +
+                        "    WHEN 0 THEN CONTENT\n" +
+                        "    ELSE (SELECT GROUP_CONCAT(CONTENT, '')\n" +
+                        "          FROM (SELECT CONTENT\n" +
+                        "                FROM CHUNK\n" +
+                        "                WHERE NOTE_ID = DATA._id\n" +
+                        "                ORDER BY SEQUENCE))\n" +
+                        "    END AS CONTENT\n" +
+                        "  FROM DATA;");
+                db.execSQL("CREATE VIRTUAL TABLE [INDEX] USING fts4(content=[FULL TEXT], CONTENT);");
+                db.execSQL("CREATE TRIGGER [SYNC INDEX BEFORE UPDATE] BEFORE UPDATE OF CONTENT ON DATA\n" +
+                        "  WHEN old.CHUNK_COUNT = 0\n" +
+                        "BEGIN\n" +
+                        "  DELETE FROM [INDEX]\n" +
+                        "  WHERE ROWID = old.rowid;\n" +
+                        "END;");
+                db.execSQL("CREATE TRIGGER [SYNC INDEX BEFORE DELETE] BEFORE DELETE ON DATA BEGIN\n" +
+                        "  DELETE FROM [INDEX]\n" +
+                        "  WHERE ROWID = old.rowid;\n" +
+                        "END;");
+                db.execSQL("CREATE TRIGGER [SYNC INDEX AFTER UPDATE] AFTER UPDATE OF CONTENT ON DATA\n" +
+                        "  WHEN new.CHUNK_COUNT = 0\n" +
+                        "BEGIN\n" +
+                        "  INSERT INTO [INDEX] (ROWID, CONTENT) VALUES (new.ROWID, new.CONTENT);\n" +
+                        "END;");
+                db.execSQL("CREATE TRIGGER [SYNC CHUNKS AFTER DELETE] AFTER DELETE ON DATA\n" +
+                        "  WHEN old.CHUNK_COUNT != 0\n" +
+                        "BEGIN\n" +
+                        "  DELETE FROM CHUNK\n" +
+                        "  WHERE NOTE_ID = old.rowid;\n" +
+                        "END;");
+                resumeIndexing(db);
+                break;
+            case 6:
+                db.execSQL("CREATE TABLE [DELETION LOG] (\n" +
+                        "  NOTE_ID         INTEGER PRIMARY KEY NOT NULL,\n" +
+                        "  CHANGE_TIME_UTC INTEGER NOT NULL,\n" +
+                        "  DELETED         INTEGER NOT NULL\n" +
+                        ");");
+                db.execSQL("CREATE INDEX [DELETION LOG BY CHANGE TIME] ON [DELETION LOG] (CHANGE_TIME_UTC);");
+                db.execSQL("INSERT INTO [DELETION LOG] (NOTE_ID, CHANGE_TIME_UTC, DELETED)\n" +
+                        "SELECT _id, DELETED_TIME_UTC, 1\n" +
+                        "FROM DATA\n" +
+                        "WHERE DELETED_TIME_UTC IS NOT NULL;");
+                db.execSQL("CREATE TRIGGER [LOG DELETION] AFTER UPDATE OF DELETED_TIME_UTC ON DATA\n" +
+                        "  WHEN old.DELETED_TIME_UTC IS NOT new.DELETED_TIME_UTC\n" +
+                        "BEGIN\n" +
+                        "  INSERT OR REPLACE INTO [DELETION LOG] (NOTE_ID, CHANGE_TIME_UTC, DELETED)\n" +
+                        "  VALUES (new._id,\n" +
+                        "          IFNULL(new.DELETED_TIME_UTC, CAST((JULIANDAY('now') - 2440587.5) * 86400000 AS INTEGER)),\n" +
+                        "          new.DELETED_TIME_UTC IS NOT NULL);\n" +
+                        "END;");
+                break;
+            case 7:
+                db.execSQL("ALTER TABLE DATA ADD COLUMN LINKS_VERSION INTEGER;");
+                db.execSQL("CREATE TABLE LINK (\n" +
+                        "  NOTE_ID  INTEGER NOT NULL,\n" +
+                        "  POSITION INTEGER NOT NULL,\n" +
+                        "  URL      TEXT    NOT NULL,\n" +
+                        "  PRIMARY KEY (NOTE_ID, POSITION)\n" +
+                        ");");
+                db.execSQL("CREATE TRIGGER [SYNC LINKS AFTER DELETE] AFTER DELETE ON DATA\n" +
+                        "BEGIN\n" +
+                        "  DELETE FROM LINK\n" +
+                        "  WHERE NOTE_ID = old._id;\n" +
+                        "END;");
+                break;
+            case 8:
+                db.execSQL("ALTER TABLE DATA ADD COLUMN CONTENT_HASH INTEGER;");
+                hashNotes(db);
+                db.execSQL("CREATE INDEX [DATA BY CONTENT HASH] ON DATA (CONTENT_HASH, CREATION_TIME_UTC);");
+                db.execSQL("CREATE INDEX [DATA BY CREATION TIME] ON DATA (CREATION_TIME_UTC, LAST_WRITE_TIME_UTC);");
+                break;
+            default:
+                throw new IllegalStateException("No migration to database version " + version);
+        }
+    }
+
+    private static void splitLargeNotes(SQLiteDatabase db) {
+        long[] ids;
+        int[] lengths;
+        try (Cursor cursor = db.rawQuery("SELECT _id, LENGTH(CONTENT) FROM DATA WHERE LENGTH(CONTENT) > " + LARGE_NOTE_THRESHOLD + ";", null)) {
+            ids = new long[cursor.getCount()];
+            lengths = new int[ids.length];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+                lengths[i] = cursor.getInt(1);
+            }
+        }
+        for (int i = 0; i < ids.length; i++) {
+            long id = ids[i];
+            int chunkCount = (lengths[i] + CHUNK_LENGTH - 1) / CHUNK_LENGTH;
+            for (int sequence = 0; sequence < chunkCount; sequence++) {
+                db.execSQL("INSERT INTO CHUNK (NOTE_ID, SEQUENCE, CONTENT)\n" +
+                        "SELECT _id, ?, SUBSTR(CONTENT, ?, " + CHUNK_LENGTH + ")\n" +
+                        "FROM DATA\n" +
+                        "WHERE _id = ?;", new Object[]{sequence, sequence * CHUNK_LENGTH + 1, id});
+            }
+            db.execSQL("UPDATE DATA\n" +
+                    "SET CONTENT = SUBSTR(CONTENT, 1, " + PREVIEW_LENGTH + "),\n" +
+                    "  CHUNK_COUNT = ?\n" +
+                    "WHERE _id = ?;", new Object[]{chunkCount, id});
+        }
+    }
+
+    private static void hashNotes(SQLiteDatabase db) {
+        SQLiteStatement statement = db.compileStatement("UPDATE DATA SET CONTENT_HASH = ? WHERE _id = ?;");
+        try {
+            long lastId = Long.MIN_VALUE;
+            while (true) {
+                try (Cursor cursor = db.rawQuery("SELECT _id, CONTENT, CHUNK_COUNT\n" +
+                        "FROM DATA\n" +
+                        "WHERE _id > ?\n" +
+                        "ORDER BY _id\n" +
+                        "LIMIT " + EXPORT_CHUNK_SIZE + ";", new String[]{Long.toString(lastId)})) {
+                    if (!cursor.moveToFirst()) {
+                        return;
+                    }
+                    do {
+                        lastId = cursor.getLong(0);
+                        String content = cursor.getInt(2) == 0 ? cursor.getString(1) : readChunks(db, lastId);
+                        if (content != null) {
+                            statement.bindLong(1, contentHash(content));
+                            statement.bindLong(2, lastId);
+                            statement.executeUpdateDelete();
+                        }
+                    } while (cursor.moveToNext());
+                }
+            }
+        } finally {
+            statement.close();
+        }
+    }
+
+    private static long contentHash(String content) {
+        try {
+            return ByteBuffer.wrap(MessageDigest.getInstance("SHA-1").digest(content.getBytes(StandardCharsets.UTF_8))).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static List<String> split(String content) {
+        if (content.length() <= LARGE_NOTE_THRESHOLD) {
+            return null;
+        }
+        List<String> chunks = new ArrayList<>(content.length() / CHUNK_LENGTH + 1);
+        for (int start = 0; start < content.length(); ) {
+            int end = boundary(content, start + CHUNK_LENGTH);
+            chunks.add(content.substring(start, end));
+            start = end;
+        }
+        return chunks;
+    }
+
+    private static String preview(String content) {
+        return content.substring(0, boundary(content, PREVIEW_LENGTH));
+    }
+
+    private static int boundary(String content, int end) {
+        if (end >= content.length()) {
+            return content.length();
+        }
+        return Character.isHighSurrogate(content.charAt(end - 1)) ? end - 1 : end;
+    }
+
+    private static void insertChunks(SQLiteDatabase db, long id, List<String> chunks) {
+        SQLiteStatement statement = db.compileStatement("INSERT INTO CHUNK (NOTE_ID, SEQUENCE, CONTENT) VALUES (?, ?, ?);");
+        try {
+            for (int sequence = 0; sequence < chunks.size(); sequence++) {
+                statement.bindLong(1, id);
+                statement.bindLong(2, sequence);
+                statement.bindString(3, chunks.get(sequence));
+                statement.executeInsert();
+            }
+        } finally {
+            statement.close();
+        }
+    }
+
+    private static String readChunks(SQLiteDatabase db, long id) {
+        try (Cursor cursor = db.rawQuery("SELECT CONTENT\n" +
+                "FROM CHUNK\n" +
+                "WHERE NOTE_ID = ?\n" +
+                "ORDER BY SEQUENCE;", new String[]{Long.toString(id)})) {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            StringBuilder content = new StringBuilder(cursor.getCount() * CHUNK_LENGTH);
+            do {
+                content.append(cursor.getString(0));
+            } while (cursor.moveToNext());
+            return content.toString();
+        }
+    }
+
+    private static void indexLargeNote(SQLiteDatabase db, long id, String content) {
+        db.execSQL("INSERT INTO [INDEX] (ROWID, CONTENT) VALUES (?, ?);", new Object[]{id, content});
+    }
+
+    private static void unindexLargeNote(SQLiteDatabase db, long id) {
+        db.execSQL("DELETE FROM [INDEX] WHERE ROWID = ?;", new Object[]{id});
+        db.execSQL("DELETE FROM CHUNK WHERE NOTE_ID = ?;", new Object[]{id});
+    }
+
+    public Reader openContentReader(final long id) {
+        final SQLiteDatabase database = getReadableDatabase();
+        final long chunkCount = DatabaseUtils.longForQuery(database, "SELECT CHUNK_COUNT FROM DATA WHERE _id = ?;", new String[]{Long.toString(id)});
+        if (chunkCount == 0) {
+            String content = DatabaseUtils.stringForQuery(database, "SELECT CONTENT FROM DATA WHERE _id = ?;", new String[]{Long.toString(id)});
+            return new StringReader(content == null ? "" : content);
+        }
+        return new Reader() {
+            private long sequence;
+            private String chunk = "";
+            private int position;
+
+            @Override
+            public int read(char[] buffer, int offset, int count) throws IOException {
+                while (position == chunk.length()) {
+                    if (sequence == chunkCount) {
+                        return -1;
+                    }
+                    try {
+                        chunk = DatabaseUtils.stringForQuery(database, "SELECT CONTENT FROM CHUNK WHERE NOTE_ID = ? AND SEQUENCE = ?;", new String[]{Long.toString(id), Long.toString(sequence++)});
+                    } catch (SQLiteDoneException e) {
+                        throw new IOException("Missing chunk " + (sequence - 1) + " of note " + id);
+                    }
+                    position = 0;
+                }
+                int length = Math.min(count, chunk.length() - position);
+                chunk.getChars(position, position + length, buffer, offset);
+                position += length;
+                return length;
+            }
+
+            @Override
+            public void close() {
+                chunk = "";
+                sequence = chunkCount;
+            }
+        };
+    }
+
+    public long getWriteGeneration() {
+        return writeGeneration.get();
+    }
+
+    public void registerChangeListener(ChangeListener listener) {
+        changeListeners.add(listener);
+    }
+
+    public void unregisterChangeListener(ChangeListener listener) {
+        changeListeners.remove(listener);
+    }
+
+    private void publish(int type, long... ids) {
+        if (changeListeners.isEmpty()) {
+            return;
+        }
+        final List<Change> changes = new ArrayList<>(ids.length);
+        if (type == Change.INVALIDATE || ids.length > DELETE_BATCH_SIZE) {
+            changes.add(new Change(Change.INVALIDATE, 0));
+        } else {
+            for (long id : ids) {
+                changes.add(new Change(type, id));
+            }
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (ChangeListener listener : changeListeners) {
+                    listener.onChanged(changes);
+                }
+            }
+        });
     }
 
     public String getContentOfOneRecord(long id) {
+        String content = contentCache.get(id);
+        if (content != null) {
+            return content;
+        }
+        long generation = writeGeneration.get();
+        long start = QueryMetrics.now();
+        SQLiteStatement statement = statements().getContentOfOneRecord;
         try {
-            getContentOfOneRecordStatement.bindLong(1, id);
-            return getContentOfOneRecordStatement.simpleQueryForString();
+            statement.bindLong(1, id);
+            content = statement.simpleQueryForString();
+        } catch (SQLiteDoneException e) {
+            content = readChunks(getReadableDatabase(), id);
+            if (content == null) {
+                throw e;
+            }
         } finally {
-            getContentOfOneRecordStatement.clearBindings();
+            statement.clearBindings();
         }
+        synchronized (contentCache) {
+            if (content != null && content.length() <= LARGE_NOTE_THRESHOLD && writeGeneration.get() == generation) {
+                contentCache.put(id, content);
+            }
+        }
+        metrics.record("getContentOfOneRecord", start, 1);
+        return content;
+    }
+
+    public void prefetch(final long[] ids) {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (long id : ids) {
+                    if (contentCache.get(id) == null) {
+                        try {
+                            getContentOfOneRecord(id);
+                        } catch (SQLiteDoneException ignored) {
+                        }
+                    }
+                }
+            }
+        });
     }
 
     public long insert(String content) {
+        long start = QueryMetrics.now();
+        Statements statements = statements();
+        SQLiteDatabase database = getWritableDatabase();
+        List<String> chunks = split(content);
+        long id;
+        database.beginTransaction();
         try {
-            insertStatement.bindString(1, content);
-            return insertStatement.executeInsert();
+            try {
+                statements.insert.bindString(1, chunks == null ? content : preview(content));
+                statements.insert.bindLong(2, chunks == null ? 0 : chunks.size());
+                statements.insert.bindLong(3, contentHash(content));
+                id = statements.insert.executeInsert();
+            } finally {
+                statements.insert.clearBindings();
+            }
+            if (chunks != null) {
+                insertChunks(database, id, chunks);
+                indexLargeNote(database, id, content);
+            }
+            database.setTransactionSuccessful();
         } finally {
-            insertStatement.clearBindings();
+            database.endTransaction();
+            writeGeneration.incrementAndGet();
         }
+        publish(Change.INSERT, id);
+        metrics.record("insert", start, 1);
+        return id;
     }
 
-    public Boolean dumpAsJSON(OutputStream stream) {
-        try (JsonWriter writer = new JsonWriter(new OutputStreamWriter(stream));
-             Cursor cursor = queryAllRecords()) {
+    public Boolean dumpAsJSON(OutputStream stream, ProgressListener listener, CancellationSignal cancellationSignal) {
+        long start = QueryMetrics.now();
+        long total = DatabaseUtils.queryNumEntries(getReadableDatabase(), "DATA", "DELETED_TIME_UTC IS NULL");
+        long done = 0;
+        try (JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), EXPORT_BUFFER_SIZE))) {
             writer.beginArray();
-            while (cursor.moveToNext()) {
-                writer.beginObject();
-                writer.name("creation_time_utc");
-                writer.value(cursor.getLong(1));
-                writer.name("last_write_time_utc");
-                writer.value(cursor.getLong(2));
-                writer.name("content");
-                writer.value(cursor.getString(3));
-                writer.endObject();
+            long lastId = Long.MIN_VALUE;
+            while (true) {
+                try (Cursor cursor = queryRecordsAfter(lastId, EXPORT_CHUNK_SIZE, cancellationSignal)) {
+                    if (!cursor.moveToFirst()) {
+                        break;
+                    }
+                    do {
+                        writer.beginObject();
+                        writer.name("creation_time_utc");
+                        writer.value(cursor.getLong(1));
+                        writer.name("last_write_time_utc");
+                        writer.value(cursor.getLong(2));
+                        writer.name("content");
+                        writer.value(cursor.getInt(4) == 0 ? cursor.getString(3) : readChunks(getReadableDatabase(), cursor.getLong(0)));
+                        writer.endObject();
+                        lastId = cursor.getLong(0);
+                        done++;
+                    } while (cursor.moveToNext());
+                }
+                if (listener != null) {
+                    listener.onProgress(done, total);
+                }
             }
             writer.endArray();
+            metrics.recordBulk("dumpAsJSON", start, done);
             return true;
-        } catch (IOException e) {
+        } catch (IOException | OperationCanceledException e) {
             return false;
         }
     }
 
-    public Boolean restoreFromJSON(InputStream stream) {
+    public Boolean restoreFromJSON(InputStream stream, int batchSize, boolean merge, ProgressListener listener, CancellationSignal cancellationSignal) {
+        long start = QueryMetrics.now();
         SQLiteDatabase database = getWritableDatabase();
-        try (JsonReader reader = new JsonReader(new InputStreamReader(stream))) {
-            database.beginTransaction();
+        long done = 0;
+        Statements statements = statements();
+        boolean suspended = !merge || DatabaseUtils.queryNumEntries(database, "DATA") == 0;
+        if (suspended) {
+            suspendIndexing(database);
+        }
+        try (JsonReader reader = new JsonReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
             reader.beginArray();
-            while (reader.hasNext()) {
-                reader.beginObject();
-                long creationTimeUTC = 0;
-                long lastWriteTimeUTC = 0;
-                String content = null;
+            database.beginTransaction();
+            try {
                 while (reader.hasNext()) {
-                    switch (reader.nextName()) {
-                        case "creation_time_utc":
-                            creationTimeUTC = reader.nextLong();
-                            break;
-                        case "last_write_time_utc":
-                            lastWriteTimeUTC = reader.nextLong();
-                            break;
-                        case "content":
-                            content = reader.nextString();
-                            break;
-                        default:
-                            reader.skipValue();
+                    reader.beginObject();
+                    long creationTimeUTC = 0;
+                    long lastWriteTimeUTC = 0;
+                    String content = null;
+                    while (reader.hasNext()) {
+                        switch (reader.nextName()) {
+                            case "creation_time_utc":
+                                creationTimeUTC = reader.nextLong();
+                                break;
+                            case "last_write_time_utc":
+                                lastWriteTimeUTC = reader.nextLong();
+                                break;
+                            case "content":
+                                content = reader.nextString();
+                                break;
+                            default:
+                                reader.skipValue();
+                        }
+                    }
+                    if (merge) {
+                        mergeNote(database, statements, creationTimeUTC, lastWriteTimeUTC, content, null);
+                    } else {
+                        restoreNote(database, statements, creationTimeUTC, lastWriteTimeUTC, content);
+                    }
+                    reader.endObject();
+                    if (++done % batchSize == 0) {
+                        endBatch(database, done, listener, cancellationSignal);
+                    }
+                }
+                reader.endArray();
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+            if (listener != null) {
+                listener.onProgress(done, -1);
+            }
+            return true;
+        } catch (IOException | OperationCanceledException e) {
+            return false;
+        } finally {
+            if (suspended) {
+                resumeIndexing(database);
+            }
+            writeGeneration.incrementAndGet();
+            synchronized (contentCache) {
+                contentCache.evictAll();
+            }
+            checkpoint(true);
+            publish(Change.INVALIDATE);
+            metrics.recordBulk(merge ? "restoreFromJSON(merge)" : "restoreFromJSON", start, done);
+        }
+    }
+
+    private static long restoreNote(SQLiteDatabase database, Statements statements, long creationTimeUTC, long lastWriteTimeUTC, String content) {
+        List<String> chunks = content == null ? null : split(content);
+        long id;
+        try {
+            statements.restore.bindLong(1, creationTimeUTC);
+            statements.restore.bindLong(2, lastWriteTimeUTC);
+            if (content == null) {
+                statements.restore.bindNull(3);
+                statements.restore.bindNull(5);
+            } else {
+                statements.restore.bindString(3, chunks == null ? content : preview(content));
+                statements.restore.bindLong(5, contentHash(content));
+            }
+            statements.restore.bindLong(4, chunks == null ? 0 : chunks.size());
+            id = statements.restore.executeInsert();
+        } finally {
+            statements.restore.clearBindings();
+        }
+        if (chunks != null) {
+            insertChunks(database, id, chunks);
+            indexLargeNote(database, id, content);
+        }
+        return id;
+    }
+
+    private static long mergeNote(SQLiteDatabase database, Statements statements, long creationTimeUTC, long lastWriteTimeUTC, String content, Set<Long> inserted) {
+        if (content != null) {
+            try {
+                statements.findIdentical.bindLong(1, contentHash(content));
+                statements.findIdentical.bindLong(2, creationTimeUTC);
+                return statements.findIdentical.simpleQueryForLong();
+            } catch (SQLiteDoneException ignored) {
+            } finally {
+                statements.findIdentical.clearBindings();
+            }
+        }
+        long id = 0;
+        if (creationTimeUTC != 0) {
+            try {
+                statements.findByCreation.bindLong(1, creationTimeUTC);
+                statements.findByCreation.bindLong(2, lastWriteTimeUTC);
+                id = statements.findByCreation.simpleQueryForLong();
+            } catch (SQLiteDoneException ignored) {
+            } finally {
+                statements.findByCreation.clearBindings();
+            }
+        }
+        if (id == 0) {
+            id = restoreNote(database, statements, creationTimeUTC, lastWriteTimeUTC, content);
+            if (inserted != null) {
+                inserted.add(id);
+            }
+            return id;
+        }
+        if (id < 0) {
+            return -id;
+        }
+        replaceContent(database, statements, id, lastWriteTimeUTC, content);
+        return id;
+    }
+
+    private static void replaceContent(SQLiteDatabase database, Statements statements, long id, long lastWriteTimeUTC, String content) {
+        if (DatabaseUtils.longForQuery(database, "SELECT CHUNK_COUNT FROM DATA WHERE _id = ?;", new String[]{Long.toString(id)}) != 0) {
+            unindexLargeNote(database, id);
+        }
+        List<String> chunks = content == null ? null : split(content);
+        try {
+            if (content == null) {
+                statements.merge.bindNull(1);
+                statements.merge.bindNull(3);
+            } else {
+                statements.merge.bindString(1, chunks == null ? content : preview(content));
+                statements.merge.bindLong(3, contentHash(content));
+            }
+            statements.merge.bindLong(2, chunks == null ? 0 : chunks.size());
+            statements.merge.bindLong(4, lastWriteTimeUTC);
+            statements.merge.bindLong(5, id);
+            statements.merge.executeUpdateDelete();
+        } finally {
+            statements.merge.clearBindings();
+        }
+        if (chunks != null) {
+            insertChunks(database, id, chunks);
+            indexLargeNote(database, id, content);
+        }
+        logChange(database, id, false);
+    }
+
+    private static void logChange(SQLiteDatabase database, long id, boolean deleted) {
+        database.execSQL("INSERT OR REPLACE INTO [DELETION LOG] (NOTE_ID, CHANGE_TIME_UTC, DELETED)\n" +
+                "VALUES (?, CAST((JULIANDAY('now') - 2440587.5) * 86400000 AS INTEGER), ?);", new Object[]{id, deleted ? 1 : 0});
+    }
+
+    private void endBatch(SQLiteDatabase database, long done, ProgressListener listener, CancellationSignal cancellationSignal) {
+        database.setTransactionSuccessful();
+        database.endTransaction();
+        database.beginTransaction();
+        writeGeneration.incrementAndGet();
+        synchronized (contentCache) {
+            contentCache.evictAll();
+        }
+        if (listener != null) {
+            listener.onProgress(done, -1);
+        }
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
+        }
+    }
+
+    public BinaryBackup.Watermark dumpAsBinary(OutputStream stream, BinaryBackup.Watermark base, ProgressListener listener, CancellationSignal cancellationSignal) {
+        long start = QueryMetrics.now();
+        SQLiteDatabase database = getReadableDatabase();
+        BinaryBackup.Watermark watermark = new BinaryBackup.Watermark(
+                DatabaseUtils.longForQuery(database, "SELECT CAST((JULIANDAY('now') - 2440587.5) * 86400000 AS INTEGER);", null),
+                DatabaseUtils.longForQuery(database, "SELECT IFNULL(MAX(_id), 0) FROM DATA;", null));
+        long done = 0;
+        try (BinaryBackup.Writer writer = new BinaryBackup.Writer(stream, base, watermark)) {
+            long lastId = Long.MIN_VALUE;
+            while (true) {
+                try (Cursor cursor = base.isFull() ? queryRecordsAfter(lastId, EXPORT_CHUNK_SIZE, cancellationSignal) : queryRecordsChangedAfter(lastId, base, cancellationSignal)) {
+                    if (!cursor.moveToFirst()) {
+                        break;
+                    }
+                    do {
+                        long id = cursor.getLong(0);
+                        if (cursor.getInt(4) == 0) {
+                            writer.writeNote(id, cursor.getLong(1), cursor.getLong(2), cursor.getString(3));
+                        } else {
+                            try (Reader content = openContentReader(id)) {
+                                writer.writeNote(id, cursor.getLong(1), cursor.getLong(2), content);
+                            }
+                        }
+                        lastId = id;
+                        done++;
+                    } while (cursor.moveToNext());
+                }
+                if (listener != null) {
+                    listener.onProgress(done, -1);
+                }
+            }
+            if (!base.isFull()) {
+                try (Cursor cursor = query("queryDeletionsSince", "SELECT NOTE_ID, IFNULL((SELECT DELETED_TIME_UTC FROM DATA WHERE _id = NOTE_ID), CHANGE_TIME_UTC)\n" +
+                        "FROM [DELETION LOG]\n" +
+                        "WHERE CHANGE_TIME_UTC >= ? AND DELETED != 0;", new String[]{Long.toString(base.time)}, cancellationSignal)) {
+                    while (cursor.moveToNext()) {
+                        writer.writeDeleted(cursor.getLong(0), cursor.getLong(1));
+                        done++;
+                    }
+                }
+            }
+            writer.finish();
+            metrics.recordBulk(base.isFull() ? "dumpAsBinary" : "dumpAsBinary(incremental)", start, done);
+            return watermark;
+        } catch (IOException | OperationCanceledException e) {
+            return null;
+        }
+    }
+
+    public Boolean restoreFromBinary(List<InputStream> streams, int batchSize, ProgressListener listener, CancellationSignal cancellationSignal) {
+        long start = QueryMetrics.now();
+        SQLiteDatabase database = getWritableDatabase();
+        Statements statements = statements();
+        List<BinaryBackup.Reader> chain = new ArrayList<>(streams.size());
+        long done = 0;
+        boolean started = false;
+        boolean suspended = false;
+        try {
+            for (InputStream stream : streams) {
+                chain.add(new BinaryBackup.Reader(stream));
+            }
+            Collections.sort(chain, new Comparator<BinaryBackup.Reader>() {
+                @Override
+                public int compare(BinaryBackup.Reader lhs, BinaryBackup.Reader rhs) {
+                    return lhs.base.time < rhs.base.time ? -1 : lhs.base.time == rhs.base.time ? 0 : 1;
+                }
+            });
+            if (chain.isEmpty() || !chain.get(0).base.isFull()) {
+                return false;
+            }
+            for (int i = 1; i < chain.size(); i++) {
+                if (!chain.get(i).base.equals(chain.get(i - 1).watermark)) {
+                    return false;
+                }
+            }
+            started = true;
+            if (DatabaseUtils.queryNumEntries(database, "DATA") == 0) {
+                suspendIndexing(database);
+                suspended = true;
+            }
+            Map<Long, Long> ids = new HashMap<>();
+            Set<Long> inserted = new HashSet<>();
+            database.beginTransaction();
+            try {
+                for (BinaryBackup.Reader reader : chain) {
+                    while (reader.next()) {
+                        Long id = ids.get(reader.id);
+                        switch (reader.type) {
+                            case BinaryBackup.NOTE:
+                                if (id == null) {
+                                    ids.put(reader.id, mergeNote(database, statements, reader.creationTimeUTC, reader.lastWriteTimeUTC, reader.content, inserted));
+                                } else if (inserted.remove(id)) {
+                                    database.execSQL("DELETE FROM DATA WHERE _id = ?;", new Object[]{id});
+                                    id = restoreNote(database, statements, reader.creationTimeUTC, reader.lastWriteTimeUTC, reader.content);
+                                    inserted.add(id);
+                                    ids.put(reader.id, id);
+                                } else {
+                                    if (DatabaseUtils.longForQuery(database, "SELECT COUNT(*)\n" +
+                                            "FROM DATA\n" +
+                                            "WHERE _id = ? AND LAST_WRITE_TIME_UTC < ?;", new String[]{Long.toString(id), Long.toString(reader.lastWriteTimeUTC)}) != 0) {
+                                        replaceContent(database, statements, id, reader.lastWriteTimeUTC, reader.content);
+                                    }
+                                    database.execSQL("UPDATE DATA\n" +
+                                            "SET DELETED_TIME_UTC = NULL\n" +
+                                            "WHERE _id = ? AND DELETED_TIME_UTC < ?;", new Object[]{id, reader.watermark.time});
+                                }
+                                break;
+                            case BinaryBackup.DELETED:
+                                if (id != null) {
+                                    database.execSQL("UPDATE DATA\n" +
+                                            "SET DELETED_TIME_UTC = ?\n" +
+                                            "WHERE _id = ? AND DELETED_TIME_UTC IS NULL AND LAST_WRITE_TIME_UTC <= ?;", new Object[]{reader.deletedTimeUTC, id, reader.deletedTimeUTC});
+                                    if (DatabaseUtils.longForQuery(database, "SELECT changes();", null) != 0) {
+                                        logChange(database, id, true);
+                                    }
+                                }
+                                break;
+                        }
+                        if (++done % batchSize == 0) {
+                            endBatch(database, done, listener, cancellationSignal);
+                        }
                     }
                 }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+            if (listener != null) {
+                listener.onProgress(done, -1);
+            }
+            return true;
+        } catch (IOException | OperationCanceledException e) {
+            return false;
+        } finally {
+            for (BinaryBackup.Reader reader : chain) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (started) {
+                if (suspended) {
+                    resumeIndexing(database);
+                }
+                writeGeneration.incrementAndGet();
+                synchronized (contentCache) {
+                    contentCache.evictAll();
+                }
+                checkpoint(true);
+                publish(Change.INVALIDATE);
+            }
+            metrics.recordBulk("restoreFromBinary", start, done);
+        }
+    }
+
+    public int delete(long id) {
+        long start = QueryMetrics.now();
+        Statements statements = statements();
+        try {
+            statements.delete.bindLong(1, id);
+            int rows = statements.delete.executeUpdateDelete();
+            metrics.record("delete", start, rows);
+            if (rows != 0) {
+                publish(Change.DELETE, id);
+            }
+            return rows;
+        } finally {
+            statements.delete.clearBindings();
+            writeGeneration.incrementAndGet();
+        }
+    }
+
+    public int delete(long[] ids) {
+        return markDeleted(ids, true);
+    }
+
+    public int undelete(long[] ids) {
+        return markDeleted(ids, false);
+    }
+
+    private int markDeleted(long[] ids, boolean deleted) {
+        long start = QueryMetrics.now();
+        SQLiteDatabase database = getWritableDatabase();
+        int rows = 0;
+        database.beginTransaction();
+        try {
+            for (int from = 0; from < ids.length; from += DELETE_BATCH_SIZE) {
+                StringBuilder sql = new StringBuilder(deleted ? "UPDATE DATA\n" +
+                        "SET DELETED_TIME_UTC = CAST((JULIANDAY('now') - 2440587.5) * 86400000 AS INTEGER)\n" +
+                        "WHERE DELETED_TIME_UTC IS NULL AND _id IN (" : "UPDATE DATA\n" +
+                        "SET DELETED_TIME_UTC = NULL\n" +
+                        "WHERE _id IN (");
+                appendIds(sql, ids, from, Math.min(from + DELETE_BATCH_SIZE, ids.length));
+                sql.append(");");
+                SQLiteStatement statement = database.compileStatement(sql.toString());
                 try {
-                    restoreStatement.bindLong(1, creationTimeUTC);
-                    restoreStatement.bindLong(2, lastWriteTimeUTC);
-                    restoreStatement.bindString(3, content);
-                    restoreStatement.executeInsert();
+                    rows += statement.executeUpdateDelete();
                 } finally {
-                    restoreStatement.clearBindings();
+                    statement.close();
                 }
-                reader.endObject();
             }
-            reader.endArray();
             database.setTransactionSuccessful();
-            return true;
-        } catch (IOException e) {
-            return false;
         } finally {
             database.endTransaction();
+            writeGeneration.incrementAndGet();
+        }
+        if (ids.length > DELETE_BATCH_SIZE) {
+            checkpoint(true);
+        }
+        metrics.recordBulk(deleted ? "delete(long[])" : "undelete(long[])", start, rows);
+        if (rows != 0) {
+            publish(deleted ? Change.DELETE : Change.INSERT, ids);
         }
+        return rows;
     }
 
-    public int delete(long id) {
+    public int purgeDeleted(long deletedBeforeUTC) {
+        long start = QueryMetrics.now();
+        SQLiteStatement statement = getWritableDatabase().compileStatement("DELETE FROM DATA\n" +
+                "WHERE _id IN (SELECT _id\n" +
+                "              FROM DATA\n" +
+                "              WHERE DELETED_TIME_UTC < ?\n" +
+                "              LIMIT " + PURGE_BATCH_SIZE + ");");
         try {
-            deleteStatement.bindLong(1, id);
-            return deleteStatement.executeUpdateDelete();
+            statement.bindLong(1, deletedBeforeUTC);
+            int total = 0;
+            int rows;
+            do {
+                rows = statement.executeUpdateDelete();
+                total += rows;
+            } while (rows == PURGE_BATCH_SIZE);
+            if (total != 0) {
+                checkpoint(true);
+            }
+            metrics.recordBulk("purgeDeleted", start, total);
+            return total;
         } finally {
-            deleteStatement.clearBindings();
+            statement.close();
+        }
+    }
+
+    public void checkpoint(boolean restart) {
+        long start = QueryMetrics.now();
+        DatabaseUtils.longForQuery(getWritableDatabase(), restart ? "PRAGMA wal_checkpoint(RESTART);" : "PRAGMA wal_checkpoint(PASSIVE);", null);
+        metrics.recordBulk(restart ? "checkpoint(RESTART)" : "checkpoint(PASSIVE)", start, 0);
+    }
+
+    public String maintain(boolean optimize) {
+        long start = QueryMetrics.now();
+        long startTime = System.currentTimeMillis();
+        SQLiteDatabase database = getWritableDatabase();
+        long[] before = storageStats(database);
+        String version = DatabaseUtils.stringForQuery(database, "SELECT sqlite_version();", null);
+        boolean incremental = compareVersions(version, "3.7.16") >= 0;
+        int merges = 0;
+        if (incremental) {
+            database.execSQL("INSERT INTO [INDEX] ([INDEX]) VALUES ('automerge=1');");
+            while (merges < MERGE_STEPS) {
+                long changes;
+                database.beginTransaction();
+                try {
+                    changes = DatabaseUtils.longForQuery(database, "SELECT total_changes();", null);
+                    database.execSQL("INSERT INTO [INDEX] ([INDEX]) VALUES ('merge=" + MERGE_PAGES + ",2');");
+                    changes = DatabaseUtils.longForQuery(database, "SELECT total_changes();", null) - changes;
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+                merges++;
+                if (changes < 2) {
+                    break;
+                }
+            }
+            metrics.recordBulk("maintain(merge)", start, merges);
+        }
+        if (optimize || !incremental && before[0] > OPTIMIZE_SEGMENT_THRESHOLD) {
+            long optimizeStart = QueryMetrics.now();
+            database.execSQL("INSERT INTO [INDEX] ([INDEX]) VALUES ('optimize');");
+            metrics.recordBulk("maintain(optimize)", optimizeStart, before[0]);
+            optimize = true;
+        }
+        long vacuumStart = QueryMetrics.now();
+        boolean vacuum = DatabaseUtils.longForQuery(database, "PRAGMA auto_vacuum;", null) != 2;
+        boolean skipped = false;
+        if (vacuum) {
+            long size = before[1] * DatabaseUtils.longForQuery(database, "PRAGMA page_size;", null);
+            if (new File(database.getPath()).getParentFile().getUsableSpace() >= 2 * size) {
+                database.execSQL("PRAGMA auto_vacuum = INCREMENTAL;");
+                database.execSQL("VACUUM;");
+            } else {
+                skipped = true;
+            }
+        } else {
+            database.beginTransaction();
+            try (Cursor cursor = database.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_PAGES + ");", null)) {
+                cursor.getCount();
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        }
+        if (!skipped) {
+            metrics.recordBulk(vacuum ? "maintain(VACUUM)" : "maintain(incremental_vacuum)", vacuumStart, before[2]);
+        }
+        checkpoint(true);
+        long[] after = storageStats(database);
+        String report = String.format(Locale.US, "%s SQLite %s: %d merge steps%s%s, segments %d -> %d, pages %d -> %d, free pages %d -> %d, %d ms",
+                DateFormat.format("yyyy-MM-dd HH:mm:ss", startTime),
+                version,
+                merges,
+                optimize ? ", optimize" : "",
+                skipped ? ", VACUUM skipped for lack of free space" : vacuum ? ", VACUUM" : ", incremental_vacuum",
+                before[0], after[0],
+                before[1], after[1],
+                before[2], after[2],
+                (QueryMetrics.now() - start) / 1000000);
+        synchronized (maintenanceReports) {
+            if (maintenanceReports.size() == MAINTENANCE_REPORTS) {
+                maintenanceReports.removeFirst();
+            }
+            maintenanceReports.addLast(report);
+        }
+        metrics.recordBulk("maintain", start, 0);
+        return report;
+    }
+
+    private static long[] storageStats(SQLiteDatabase db) {
+        return new long[]{
+                DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM [INDEX_segdir];", null),
+                DatabaseUtils.longForQuery(db, "PRAGMA page_count;", null),
+                DatabaseUtils.longForQuery(db, "PRAGMA freelist_count;", null)};
+    }
+
+    private static int compareVersions(String version, String other) {
+        String[] parts = version.split("\\.");
+        String[] otherParts = other.split("\\.");
+        for (int i = 0; i < Math.max(parts.length, otherParts.length); i++) {
+            int part = i < parts.length ? Integer.parseInt(parts[i]) : 0;
+            int otherPart = i < otherParts.length ? Integer.parseInt(otherParts[i]) : 0;
+            if (part != otherPart) {
+                return part < otherPart ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    private static void appendIds(StringBuilder sql, long[] ids, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (i != from) {
+                sql.append(", ");
+            }
+            sql.append(ids[i]);
         }
     }
 
     public int update(long id, String content) {
+        long start = QueryMetrics.now();
+        Statements statements = statements();
+        SQLiteDatabase database = getWritableDatabase();
+        List<String> chunks = split(content);
+        int rows;
+        database.beginTransaction();
+        try {
+            String oldContent = readChunks(database, id);
+            if (content.equals(oldContent)) {
+                return 0;
+            }
+            if (oldContent != null) {
+                unindexLargeNote(database, id);
+            }
+            try {
+                statements.update.bindString(1, chunks == null ? content : preview(content));
+                statements.update.bindLong(2, id);
+                statements.update.bindLong(3, chunks == null ? 0 : chunks.size());
+                statements.update.bindLong(4, contentHash(content));
+                rows = statements.update.executeUpdateDelete();
+            } finally {
+                statements.update.clearBindings();
+            }
+            if (chunks != null && rows != 0) {
+                insertChunks(database, id, chunks);
+                indexLargeNote(database, id, content);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        if (rows != 0) {
+            writeGeneration.incrementAndGet();
+            synchronized (contentCache) {
+                contentCache.remove(id);
+            }
+            publish(Change.UPDATE, id);
+        }
+        metrics.record("update", start, rows);
+        return rows;
+    }
+
+    public void replaceLinks(long id, String content, String[] urls) {
+        long start = QueryMetrics.now();
+        SQLiteDatabase database = getWritableDatabase();
+        database.beginTransaction();
         try {
-            updateStatement.bindLong(2, id);
-            updateStatement.bindString(1, content);
-            return updateStatement.executeUpdateDelete();
+            database.execSQL("DELETE FROM LINK WHERE NOTE_ID = ?;", new Object[]{id});
+            SQLiteStatement statement = database.compileStatement("INSERT INTO LINK (NOTE_ID, POSITION, URL) VALUES (?, ?, ?);");
+            try {
+                for (int i = 0; i < urls.length; i++) {
+                    statement.bindLong(1, id);
+                    statement.bindLong(2, i);
+                    statement.bindString(3, urls[i]);
+                    statement.executeInsert();
+                }
+            } finally {
+                statement.close();
+            }
+            SQLiteStatement version = database.compileStatement("UPDATE DATA\n" +
+                    "SET LINKS_VERSION = LAST_WRITE_TIME_UTC\n" +
+                    "WHERE _id = ? AND CONTENT_HASH = ?;");
+            try {
+                version.bindLong(1, id);
+                version.bindLong(2, contentHash(content));
+                if (version.executeUpdateDelete() != 0) {
+                    database.setTransactionSuccessful();
+                }
+            } finally {
+                version.close();
+            }
         } finally {
-            updateStatement.clearBindings();
+            database.endTransaction();
         }
+        metrics.record("replaceLinks", start, urls.length);
+    }
+
+    public String[] queryLinks(long id) {
+        long start = QueryMetrics.now();
+        SQLiteDatabase database = getReadableDatabase();
+        String[] args = {Long.toString(id)};
+        if (DatabaseUtils.longForQuery(database, "SELECT COUNT(*)\n" +
+                "FROM DATA\n" +
+                "WHERE _id = ? AND LINKS_VERSION = LAST_WRITE_TIME_UTC;", args) == 0) {
+            return null;
+        }
+        try (Cursor cursor = database.rawQuery("SELECT URL\n" +
+                "FROM LINK\n" +
+                "WHERE NOTE_ID = ?\n" +
+                "ORDER BY POSITION;", args)) {
+            String[] urls = new String[cursor.getCount()];
+            while (cursor.moveToNext()) {
+                urls[cursor.getPosition()] = cursor.getString(0);
+            }
+            metrics.record("queryLinks", start, urls.length);
+            return urls;
+        }
+    }
+
+    public Cursor queryAllLinks() {
+        return query("queryAllLinks", "SELECT\n" +
+                "  LINK.NOTE_ID,\n" +
+                "  LINK.URL\n" +
+                "FROM DATA, LINK\n" +
+                "WHERE LINK.NOTE_ID = DATA._id AND DATA.LINKS_VERSION = DATA.LAST_WRITE_TIME_UTC AND DATA.DELETED_TIME_UTC IS NULL\n" +
+                "ORDER BY DATA.LAST_WRITE_TIME_UTC DESC, LINK.NOTE_ID DESC, LINK.POSITION;", null, null);
     }
 
     public Cursor queryAllRecords() {
-        return getReadableDatabase().rawQuery("SELECT\n" +
+        return query("queryAllRecords", "SELECT\n" +
                 "  _id,\n" +
                 "  CREATION_TIME_UTC,\n" +
                 "  LAST_WRITE_TIME_UTC,\n" +
                 "  CONTENT\n" +
                 "FROM DATA\n" +
+                "WHERE DELETED_TIME_UTC IS NULL\n" +
                 "ORDER BY LAST_WRITE_TIME_UTC\n" +
-                "  DESC;", null);
+                "  DESC;", null, null);
+    }
+
+    private Cursor queryRecordsAfter(long id, int limit, CancellationSignal cancellationSignal) {
+        return query("queryRecordsAfter", "SELECT\n" +
+                "  _id,\n" +
+                "  CREATION_TIME_UTC,\n" +
+                "  LAST_WRITE_TIME_UTC,\n" +
+                "  CONTENT,\n" +
+                "  CHUNK_COUNT\n" +
+                "FROM DATA\n" +
+                "WHERE _id > ? AND DELETED_TIME_UTC IS NULL\n" +
+                "ORDER BY _id\n" +
+                "LIMIT " + limit + ";", new String[]{Long.toString(id)}, cancellationSignal);
+    }
+
+    private Cursor queryRecordsChangedAfter(long id, BinaryBackup.Watermark base, CancellationSignal cancellationSignal) {
+        return query("queryRecordsChangedAfter", "SELECT\n" +
+                "  _id,\n" +
+                "  CREATION_TIME_UTC,\n" +
+                "  LAST_WRITE_TIME_UTC,\n" +
+                "  CONTENT,\n" +
+                "  CHUNK_COUNT\n" +
+                "FROM DATA\n" +
+                "WHERE _id > ?1 AND DELETED_TIME_UTC IS NULL AND _id IN (SELECT _id\n" +
+                "                                                      FROM DATA\n" +
+                "                                                      WHERE LAST_WRITE_TIME_UTC >= ?2\n" +
+                "                                                      UNION ALL\n" +
+                "                                                      SELECT _id\n" +
+                "                                                      FROM DATA\n" +
+                "                                                      WHERE _id > ?3\n" +
+                "                                                      UNION ALL\n" +
+                "                                                      SELECT NOTE_ID\n" +
+                "                                                      FROM [DELETION LOG]\n" +
+                "                                                      WHERE CHANGE_TIME_UTC >= ?2 AND DELETED = 0)\n" +
+                "ORDER BY _id\n" +
+                "LIMIT " + EXPORT_CHUNK_SIZE + ";", new String[]{Long.toString(id), Long.toString(base.time), Long.toString(base.id)}, cancellationSignal);
+    }
+
+    public Cursor queryFirstPage() {
+        return query("queryFirstPage", "SELECT\n" +
+                "  _id,\n" +
+                "  CREATION_TIME_UTC,\n" +
+                "  LAST_WRITE_TIME_UTC,\n" +
+                "  SUBSTR(CONTENT, 1, " + PREVIEW_LENGTH + ") AS CONTENT\n" +
+                "FROM DATA\n" +
+                "WHERE DELETED_TIME_UTC IS NULL\n" +
+                "ORDER BY LAST_WRITE_TIME_UTC DESC, _id DESC\n" +
+                "LIMIT " + PAGE_SIZE + ";", null, null);
+    }
+
+    public Cursor queryPageBefore(long lastWriteTimeUTC, long id) {
+        return query("queryPageBefore", "SELECT\n" +
+                "  _id,\n" +
+                "  CREATION_TIME_UTC,\n" +
+                "  LAST_WRITE_TIME_UTC,\n" +
+                "  SUBSTR(CONTENT, 1, " + PREVIEW_LENGTH + ") AS CONTENT\n" +
+                "FROM DATA\n" +
+                "WHERE LAST_WRITE_TIME_UTC <= ?1 AND (LAST_WRITE_TIME_UTC < ?1 OR _id < ?2) AND DELETED_TIME_UTC IS NULL\n" +
+                "ORDER BY LAST_WRITE_TIME_UTC DESC, _id DESC\n" +
+                "LIMIT " + PAGE_SIZE + ";", new String[]{Long.toString(lastWriteTimeUTC), Long.toString(id)}, null);
+    }
+
+    public Cursor queryRecords(long[] ids) {
+        StringBuilder sql = new StringBuilder("SELECT\n" +
+                "  _id,\n" +
+                "  CREATION_TIME_UTC,\n" +
+                "  LAST_WRITE_TIME_UTC,\n" +
+                "  SUBSTR(CONTENT, 1, " + PREVIEW_LENGTH + ") AS CONTENT\n" +
+                "FROM DATA\n" +
+                "WHERE DELETED_TIME_UTC IS NULL AND _id IN (");
+        appendIds(sql, ids, 0, ids.length);
+        sql.append(");");
+        return query("queryRecords", sql.toString(), null, null);
     }
 
     public Cursor search(String query) {
-        return getReadableDatabase().rawQuery("SELECT\n" +
+        return search(query, null, null);
+    }
+
+    public Cursor search(String query, long[] candidates, CancellationSignal cancellationSignal) {
+        StringBuilder sql = new StringBuilder("SELECT\n" +
                 "  _id,\n" +
                 "  CREATION_TIME_UTC,\n" +
                 "  LAST_WRITE_TIME_UTC,\n" +
-                "  DATA.CONTENT\n" +
+                "  SUBSTR(DATA.CONTENT, 1, " + PREVIEW_LENGTH + ") AS CONTENT\n" +
                 "FROM DATA, [INDEX]\n" +
-                "WHERE DATA._id = [INDEX].ROWID AND [INDEX].CONTENT MATCH ?\n" +
-                "ORDER BY LAST_WRITE_TIME_UTC\n" +
-                "  DESC;", new String[]{query + '*'});
+                "WHERE DATA._id = [INDEX].ROWID AND [INDEX].CONTENT MATCH ? AND DELETED_TIME_UTC IS NULL\n");
+        if (candidates != null) {
+            sql.append("  AND DATA._id IN (");
+            appendIds(sql, candidates, 0, candidates.length);
+            sql.append(")\n");
+        }
+        sql.append("ORDER BY LAST_WRITE_TIME_UTC\n" +
+                "  DESC;");
+        Cursor cursor = query("search", sql.toString(), new String[]{query + '*'}, cancellationSignal);
+        metrics.recordMatches(cursor.getCount());
+        return cursor;
+    }
+
+    public long[] rankMatches(String query, CancellationSignal cancellationSignal) {
+        try (Cursor cursor = query("rankMatches", "SELECT\n" +
+                "  _id,\n" +
+                "  LAST_WRITE_TIME_UTC,\n" +
+                "  MATCHINFO([INDEX], 'pcnalx')\n" +
+                "FROM DATA, [INDEX]\n" +
+                "WHERE DATA._id = [INDEX].ROWID AND [INDEX].CONTENT MATCH ? AND DELETED_TIME_UTC IS NULL;", new String[]{query + '*'}, cancellationSignal)) {
+            metrics.recordMatches(cursor.getCount());
+            Match[] matches = new Match[cursor.getCount()];
+            while (cursor.moveToNext()) {
+                matches[cursor.getPosition()] = new Match(cursor.getLong(0), cursor.getLong(1),
+                        bm25(ByteBuffer.wrap(cursor.getBlob(2)).order(ByteOrder.nativeOrder()).asIntBuffer()));
+            }
+            Arrays.sort(matches);
+            long[] ids = new long[matches.length];
+            for (int i = 0; i < matches.length; i++) {
+                ids[i] = matches[i].id;
+            }
+            return ids;
+        }
+    }
+
+    private static double bm25(IntBuffer info) {
+        int phrases = info.get(0);
+        int columns = info.get(1);
+        long documents = info.get(2) & 0xffffffffL;
+        double score = 0;
+        for (int column = 0; column < columns; column++) {
+            double averageLength = Math.max(info.get(3 + column), 1);
+            double norm = BM25_K1 * (1 - BM25_B + BM25_B * info.get(3 + columns + column) / averageLength);
+            for (int phrase = 0; phrase < phrases; phrase++) {
+                int hits = info.get(3 + 2 * columns + 3 * (phrase * columns + column));
+                int documentsWithHits = info.get(3 + 2 * columns + 3 * (phrase * columns + column) + 2);
+                double idf = Math.max(Math.log((documents - documentsWithHits + 0.5) / (documentsWithHits + 0.5)), 1e-6);
+                score += idf * hits * (BM25_K1 + 1) / (hits + norm);
+            }
+        }
+        return score;
+    }
+
+    public Cursor queryRankedPage(String query, long[] ranked, int offset, CancellationSignal cancellationSignal) {
+        int to = Math.min(offset + PAGE_SIZE, ranked.length);
+        StringBuilder sql = new StringBuilder("SELECT\n" +
+                "  _id,\n" +
+                "  CREATION_TIME_UTC,\n" +
+                "  LAST_WRITE_TIME_UTC,\n" +
+                "  SNIPPET([INDEX], '" + SNIPPET_START + "', '" + SNIPPET_END + "', '\u2026', -1, " + SNIPPET_TOKENS + ") AS CONTENT\n" +
+                "FROM DATA, [INDEX]\n" +
+                "WHERE DATA._id = [INDEX].ROWID AND [INDEX].CONTENT MATCH ? AND DATA._id IN (");
+        appendIds(sql, ranked, offset, to);
+        sql.append(");");
+        try (Cursor cursor = query("queryRankedPage", sql.toString(), new String[]{query + '*'}, cancellationSignal)) {
+            Map<Long, Object[]> rows = new HashMap<>(cursor.getCount() * 2);
+            while (cursor.moveToNext()) {
+                rows.put(cursor.getLong(0), new Object[]{cursor.getLong(0), cursor.getLong(1), cursor.getLong(2), cursor.getString(3)});
+            }
+            MatrixCursor page = new MatrixCursor(cursor.getColumnNames(), rows.size());
+            for (int i = offset; i < to; i++) {
+                Object[] row = rows.get(ranked[i]);
+                if (row != null) {
+                    page.addRow(row);
+                }
+            }
+            return page;
+        }
+    }
+
+    private Cursor query(String operation, String sql, String[] args, CancellationSignal cancellationSignal) {
+        long start = QueryMetrics.now();
+        SQLiteDatabase database = getReadableDatabase();
+        Cursor cursor = database.rawQuery(sql, args, cancellationSignal);
+        try {
+            metrics.record(operation, start, cursor.getCount(), database, sql, args);
+        } catch (RuntimeException e) {
+            cursor.close();
+            throw e;
+        }
+        return cursor;
+    }
+
+    public void dumpMetrics(Writer writer) throws IOException {
+        writer.write(String.format(Locale.US, "Content cache: %d hits, %d misses, %d/%d chars%n",
+                contentCache.hitCount(), contentCache.missCount(), contentCache.size(), contentCache.maxSize()));
+        writer.write(String.format(Locale.US, "Writer connection wal_autocheckpoint: %d%n", writerAutoCheckpoint));
+        metrics.dump(writer);
+        writer.write(String.format(Locale.US, "%nMaintenance runs, oldest first:%n"));
+        synchronized (maintenanceReports) {
+            for (String report : maintenanceReports) {
+                writer.write(report);
+                writer.write('\n');
+            }
+        }
+    }
+
+    public interface ProgressListener {
+        void onProgress(long done, long total);
+    }
+
+    public interface PageSource {
+        Cursor loadPageAfter(int offset, long lastWriteTimeUTC, long id);
+    }
+
+    public interface ChangeListener {
+        void onChanged(List<Change> changes);
+    }
+
+    public static class Change {
+        public static final int INSERT = 0;
+        public static final int UPDATE = 1;
+        public static final int DELETE = 2;
+        public static final int INVALIDATE = 3;
+        public final int type;
+        public final long id;
+
+        Change(int type, long id) {
+            this.type = type;
+            this.id = id;
+        }
+    }
+
+    private static class Statements {
+        final SQLiteDatabase database;
+        final SQLiteStatement insert;
+        final SQLiteStatement update;
+        final SQLiteStatement restore;
+        final SQLiteStatement findIdentical;
+        final SQLiteStatement findByCreation;
+        final SQLiteStatement merge;
+        final SQLiteStatement delete;
+        final SQLiteStatement getContentOfOneRecord;
+
+        Statements(SQLiteDatabase database) {
+            this.database = database;
+            insert = database.compileStatement("INSERT INTO DATA (CONTENT, CHUNK_COUNT, CONTENT_HASH) VALUES (?, ?, ?);");
+            update = database.compileStatement("UPDATE DATA\n" +
+                    "SET CONTENT = ?1,\n" +
+                    "  CHUNK_COUNT = ?3,\n" +
+                    "  CONTENT_HASH = ?4,\n" +
+                    "  LAST_WRITE_TIME_UTC = CAST((JULIANDAY('now') - 2440587.5) * 86400000 AS INTEGER)\n" +
+                    "WHERE _id = ?2 AND (CONTENT IS NOT ?1 OR CHUNK_COUNT != 0 OR ?3 != 0);");
+            restore = database.compileStatement("INSERT INTO DATA (CREATION_TIME_UTC, LAST_WRITE_TIME_UTC, CONTENT, CHUNK_COUNT, CONTENT_HASH) VALUES (?, ?, ?, ?, ?);");
+            findIdentical = database.compileStatement("SELECT _id\n" +
+                    "FROM DATA\n" +
+                    "WHERE CONTENT_HASH = ? AND CREATION_TIME_UTC = ? AND DELETED_TIME_UTC IS NULL\n" +
+                    "LIMIT 1;");
+            findByCreation = database.compileStatement("SELECT CASE WHEN LAST_WRITE_TIME_UTC < ?2 THEN _id ELSE -_id END\n" +
+                    "FROM DATA\n" +
+                    "WHERE CREATION_TIME_UTC = ?1 AND DELETED_TIME_UTC IS NULL\n" +
+                    "ORDER BY LAST_WRITE_TIME_UTC DESC\n" +
+                    "LIMIT 1;");
+            merge = database.compileStatement("UPDATE DATA\n" +
+                    "SET CONTENT = ?1,\n" +
+                    "  CHUNK_COUNT = ?2,\n" +
+                    "  CONTENT_HASH = ?3,\n" +
+                    "  LAST_WRITE_TIME_UTC = ?4\n" +
+                    "WHERE _id = ?5;");
+            delete = database.compileStatement("UPDATE DATA\n" +
+                    "SET DELETED_TIME_UTC = CAST((JULIANDAY('now') - 2440587.5) * 86400000 AS INTEGER)\n" +
+                    "WHERE _id = ? AND DELETED_TIME_UTC IS NULL;");
+            getContentOfOneRecord = database.compileStatement("SELECT CONTENT\n" +
+                    "FROM DATA\n" +
+                    "WHERE _id = ? AND CHUNK_COUNT = 0\n" +
+                    "LIMIT 1;");
+        }
+    }
+
+    private static class Match implements Comparable<Match> {
+        final long id;
+        final long lastWriteTimeUTC;
+        final double score;
+
+        Match(long id, long lastWriteTimeUTC, double score) {
+            this.id = id;
+            this.lastWriteTimeUTC = lastWriteTimeUTC;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(Match another) {
+            if (score != another.score) {
+                return score > another.score ? -1 : 1;
+            }
+            return lastWriteTimeUTC == another.lastWriteTimeUTC ? 0 : lastWriteTimeUTC > another.lastWriteTimeUTC ? -1 : 1;
+        }
     }
 
     public static class Adapter extends CursorAdapter {
+        private static final int PREFETCH_DISTANCE = PAGE_SIZE / 4;
+        private static final int TIME_STAMP_CACHE_SIZE = 512;
+        private static final int MAX_APPLIED_CHANGES = 16;
         LayoutInflater inflater;
+        private final DatabaseHelper helper;
+        private final List<Cursor> pages = new ArrayList<>();
+        private final Set<Long> hidden = new HashSet<>();
+        private final LongSparseArray<String> timeStamps = new LongSparseArray<>();
+        private OverlayCursor overlay;
+        private PageSource pageSource;
+        private AsyncTask<Void, Void, Cursor> pageTask;
+        private int loadedCount;
+        private long lastWriteTimeUTC;
+        private long lastId;
 
         public Adapter(Context context) {
+            this(context, getInstance(context));
+        }
+
+        Adapter(Context context, DatabaseHelper helper) {
             super(context, null, 0);
             inflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+            this.helper = helper;
+        }
+
+        public void swapFirstPage(Cursor cursor, PageSource nextPages) {
+            if (pageTask != null) {
+                pageTask.cancel(false);
+                pageTask = null;
+            }
+            for (int i = 1; i < pages.size(); i++) {
+                pages.get(i).close();
+            }
+            pages.clear();
+            hidden.clear();
+            pageSource = nextPages;
+            loadedCount = 0;
+            if (cursor != null) {
+                pages.add(cursor);
+                onPageLoaded(cursor);
+                overlay = new OverlayCursor(cursor);
+            } else {
+                pageSource = null;
+                overlay = null;
+            }
+            swapCursor(overlay);
+        }
+
+        public boolean applyChanges(List<Change> changes) {
+            if (overlay == null || changes.size() > MAX_APPLIED_CHANGES) {
+                return false;
+            }
+            List<Long> changed = new ArrayList<>();
+            for (Change change : changes) {
+                if (change.type == Change.INVALIDATE) {
+                    return false;
+                }
+            }
+            for (Change change : changes) {
+                if (change.type == Change.DELETE) {
+                    overlay.remove(change.id);
+                    hidden.add(change.id);
+                } else {
+                    changed.add(change.id);
+                }
+            }
+            notifyDataSetChanged();
+            if (changed.isEmpty()) {
+                return true;
+            }
+            final long[] ids = new long[changed.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = changed.get(i);
+            }
+            new AsyncTask<Void, Void, List<Object[]>>() {
+                @Override
+                protected List<Object[]> doInBackground(Void... params) {
+                    List<Object[]> rows = new ArrayList<>(ids.length);
+                    try (Cursor cursor = helper.queryRecords(ids)) {
+                        while (cursor.moveToNext()) {
+                            rows.add(new Object[]{cursor.getLong(0), cursor.getLong(1), cursor.getLong(2), cursor.getString(3)});
+                        }
+                    }
+                    return rows;
+                }
+
+                @Override
+                protected void onPostExecute(List<Object[]> rows) {
+                    if (overlay == null) {
+                        return;
+                    }
+                    for (long id : ids) {
+                        overlay.remove(id);
+                        hidden.add(id);
+                    }
+                    for (Object[] row : rows) {
+                        long time = (Long) row[2];
+                        long id = (Long) row[0];
+                        if (pageSource == null || time > lastWriteTimeUTC || time == lastWriteTimeUTC && id > lastId) {
+                            overlay.insert(row);
+                        } else {
+                            hidden.remove(id);
+                        }
+                    }
+                    notifyDataSetChanged();
+                }
+            }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            return true;
+        }
+
+        private void onPageLoaded(Cursor page) {
+            loadedCount += page.getCount();
+            if (page.getCount() < PAGE_SIZE) {
+                pageSource = null;
+            } else if (page.moveToLast()) {
+                lastWriteTimeUTC = page.getLong(2);
+                lastId = page.getLong(0);
+            }
+        }
+
+        private void loadNextPage() {
+            final PageSource source = pageSource;
+            final int offset = loadedCount;
+            final long time = lastWriteTimeUTC;
+            final long id = lastId;
+            pageTask = new AsyncTask<Void, Void, Cursor>() {
+                @Override
+                protected Cursor doInBackground(Void... params) {
+                    Cursor page = source.loadPageAfter(offset, time, id);
+                    if (page != null) {
+                        page.getCount();
+                    }
+                    return page;
+                }
+
+                @Override
+                protected void onPostExecute(Cursor page) {
+                    pageTask = null;
+                    if (page == null) {
+                        pageSource = null;
+                        return;
+                    }
+                    pages.add(page);
+                    onPageLoaded(page);
+                    overlay = overlay.append(page, hidden);
+                    swapCursor(overlay);
+                }
+
+                @Override
+                protected void onCancelled(Cursor page) {
+                    if (page != null) {
+                        page.close();
+                    }
+                }
+            }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            if (pageSource != null && pageTask == null && position >= getCount() - PREFETCH_DISTANCE) {
+                loadNextPage();
+            }
+            return super.getView(position, convertView, parent);
         }
 
         @Override
@@ -237,12 +1731,64 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         @Override
         public void bindView(View view, Context context, Cursor cursor) {
             ViewHolder holder = (ViewHolder) view.getTag();
-            holder.timeStamp.setText(DateUtils.formatDateTime(context, cursor.getLong(1), DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME));
-            holder.text.setText(cursor.getString(3));
+            holder.timeStamp.setText(formatTimeStamp(context, cursor.getLong(1)));
+            cursor.copyStringToBuffer(3, holder.buffer);
+            char[] text = holder.buffer.data;
+            int length = holder.buffer.sizeCopied;
+            if (indexOf(text, length, SNIPPET_START) >= 0) {
+                holder.text.setText(highlight(new String(text, 0, length)));
+            } else {
+                if (length > PREVIEW_LENGTH) {
+                    length = Character.isHighSurrogate(text[PREVIEW_LENGTH - 1]) ? PREVIEW_LENGTH - 1 : PREVIEW_LENGTH;
+                }
+                holder.text.setText(text, 0, length);
+            }
             holder.number.setVisibility(View.GONE);
         }
 
+        private String formatTimeStamp(Context context, long time) {
+            long minute = time / DateUtils.MINUTE_IN_MILLIS;
+            String timeStamp = timeStamps.get(minute);
+            if (timeStamp == null) {
+                if (timeStamps.size() >= TIME_STAMP_CACHE_SIZE) {
+                    timeStamps.clear();
+                }
+                timeStamp = DateUtils.formatDateTime(context, minute * DateUtils.MINUTE_IN_MILLIS, DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME);
+                timeStamps.put(minute, timeStamp);
+            }
+            return timeStamp;
+        }
+
+        private static int indexOf(char[] text, int length, char c) {
+            for (int i = 0; i < length; i++) {
+                if (text[i] == c) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static CharSequence highlight(String snippet) {
+            SpannableStringBuilder builder = new SpannableStringBuilder();
+            int start = -1;
+            for (int i = 0; i < snippet.length(); i++) {
+                char c = snippet.charAt(i);
+                if (c == SNIPPET_START) {
+                    start = builder.length();
+                } else if (c == SNIPPET_END) {
+                    if (start >= 0) {
+                        builder.setSpan(new StyleSpan(Typeface.BOLD), start, builder.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                    }
+                    start = -1;
+                } else {
+                    builder.append(c);
+                }
+            }
+            return builder;
+        }
+
         private class ViewHolder {
+            public final CharArrayBuffer buffer = new CharArrayBuffer(PREVIEW_LENGTH);
             public TextView text;
             public TextView timeStamp;
             public TextView number;
@@ -2,64 +2,163 @@ package simple.note;
 
 import android.app.ListActivity;
 import android.app.LoaderManager;
+import android.app.ProgressDialog;
 import android.content.*;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.text.format.DateUtils;
 import android.view.*;
 import android.widget.*;
 
+import java.io.BufferedWriter;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 
 public class Main extends ListActivity {
+    private static final long TRASH_RETENTION = DateUtils.DAY_IN_MILLIS;
+    private static final int PREFETCH_NEIGHBORS = 2;
     private DatabaseHelper helper;
+    private SearchEngine searchEngine;
+    private DatabaseHelper.PageSource nextPages;
+    private final DatabaseHelper.PageSource recordPages = new DatabaseHelper.PageSource() {
+        @Override
+        public Cursor loadPageAfter(int offset, long lastWriteTimeUTC, long id) {
+            return helper.queryPageBefore(lastWriteTimeUTC, id);
+        }
+    };
     private final LoaderManager.LoaderCallbacks<Cursor> callback = new LoaderManager.LoaderCallbacks<Cursor>() {
         @Override
-        public Loader<Cursor> onCreateLoader(int id, final Bundle args) {
-            return new CursorLoader(Main.this) {
-                final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
-
-                @Override
-                public Cursor loadInBackground() {
-                    Cursor cursor;
-                    if (args != null && args.containsKey("query")) {
-                        cursor = helper.search(args.getString("query"));
-                    } else {
-                        cursor = helper.queryAllRecords();
-                    }
-                    if (cursor != null) {
-                        cursor.getCount();
-                        cursor.registerContentObserver(mObserver);
-                    }
-                    return cursor;
-                }
-            };
+        public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+            return new NotesLoader(args);
         }
 
         @Override
         public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-            ((CursorAdapter) getListAdapter()).swapCursor(data);
+            nextPages = data instanceof SearchEngine.RankedCursor ? ((SearchEngine.RankedCursor) data).nextPages() : ((NotesLoader) loader).paged ? recordPages : null;
+            ((DatabaseHelper.Adapter) getListAdapter()).swapFirstPage(data, nextPages);
         }
 
         @Override
         public void onLoaderReset(Loader<Cursor> loader) {
-            ((CursorAdapter) getListAdapter()).swapCursor(null);
+            nextPages = null;
+            ((DatabaseHelper.Adapter) getListAdapter()).swapFirstPage(null, null);
+        }
+    };
+    private final DatabaseHelper.ChangeListener changeListener = new DatabaseHelper.ChangeListener() {
+        @Override
+        public void onChanged(List<DatabaseHelper.Change> changes) {
+            if (nextPages != recordPages || !((DatabaseHelper.Adapter) getListAdapter()).applyChanges(changes)) {
+                if (resumed) {
+                    searchEngine.refresh();
+                } else {
+                    refreshPending = true;
+                }
+            }
         }
     };
     private MenuItem search;
+    private long[] lastDeleted;
+    private boolean resumed;
+    private boolean refreshPending;
+
+    private class NotesLoader extends CursorLoader {
+        final boolean paged;
+        final Bundle args;
+        final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+        CancellationSignal cancellationSignal;
+
+        NotesLoader(Bundle args) {
+            super(Main.this);
+            this.args = args;
+            paged = args == null || !args.containsKey("query");
+        }
+
+        @Override
+        public Cursor loadInBackground() {
+            synchronized (this) {
+                if (isLoadInBackgroundCanceled()) {
+                    throw new OperationCanceledException();
+                }
+                cancellationSignal = new CancellationSignal();
+            }
+            try {
+                Autosave.awaitWrites();
+                Cursor cursor;
+                if (args != null && args.getBoolean("ranked")) {
+                    cursor = searchEngine.searchRanked(args.getString("query"), cancellationSignal);
+                } else if (args != null && args.containsKey("query")) {
+                    cursor = searchEngine.search(args.getString("query"), cancellationSignal);
+                } else {
+                    cursor = helper.queryFirstPage();
+                }
+                if (cursor != null) {
+                    cursor.getCount();
+                    cursor.registerContentObserver(mObserver);
+                }
+                return cursor;
+            } finally {
+                synchronized (this) {
+                    cancellationSignal = null;
+                }
+            }
+        }
+
+        @Override
+        public void cancelLoadInBackground() {
+            super.cancelLoadInBackground();
+            synchronized (this) {
+                if (cancellationSignal != null) {
+                    cancellationSignal.cancel();
+                }
+            }
+        }
+    }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         helper = DatabaseHelper.getInstance(this);
+        MaintenanceService.schedule(this);
+        searchEngine = new SearchEngine(helper, new SearchEngine.Listener() {
+            @Override
+            public void onQueryChanged(String query) {
+                if (query.length() == 0) {
+                    getLoaderManager().restartLoader(0, null, callback);
+                } else {
+                    Bundle args = new Bundle(2);
+                    args.putString("query", query);
+                    args.putBoolean("ranked", getPreferences(MODE_PRIVATE).getBoolean("rank_by_relevance", false));
+                    getLoaderManager().restartLoader(0, args, callback);
+                }
+            }
+        });
         getListView().setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
         getListView().setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                int from = Math.max(position - PREFETCH_NEIGHBORS, 0);
+                int to = Math.min(position + PREFETCH_NEIGHBORS + 1, parent.getCount());
+                long[] ids = new long[to - from];
+                ids[0] = id;
+                for (int i = from, n = 1; i < to; i++) {
+                    if (i != position) {
+                        ids[n++] = parent.getItemIdAtPosition(i);
+                    }
+                }
+                helper.prefetch(ids);
                 startActivityForResult(new Intent(Main.this, NoteDetailActivity.class).putExtra(BaseColumns._ID, id), 0);
             }
         });
@@ -78,17 +177,7 @@ public class Main extends ListActivity {
             public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
                 switch (item.getItemId()) {
                     case R.id.item_delete:
-                        SQLiteDatabase database = helper.getWritableDatabase();
-                        try {
-                            database.beginTransaction();
-                            for (long id : getListView().getCheckedItemIds()) {
-                                helper.delete(id);
-                            }
-                            database.setTransactionSuccessful();
-                        } finally {
-                            database.endTransaction();
-                        }
-                        getLoaderManager().restartLoader(0, null, callback);
+                        deleteNotes(getListView().getCheckedItemIds());
                         mode.finish();
                         break;
                     case R.id.item_select_all:
@@ -121,6 +210,61 @@ public class Main extends ListActivity {
         });
         setListAdapter(new DatabaseHelper.Adapter(this));
         getLoaderManager().initLoader(0, null, callback);
+        helper.registerChangeListener(changeListener);
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                helper.purgeDeleted(System.currentTimeMillis() - TRASH_RETENTION);
+                return null;
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        resumed = true;
+        if (refreshPending) {
+            refreshPending = false;
+            searchEngine.refresh();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        resumed = false;
+        super.onPause();
+    }
+
+    @Override
+    protected void onDestroy() {
+        helper.unregisterChangeListener(changeListener);
+        super.onDestroy();
+    }
+
+    private void deleteNotes(final long[] ids) {
+        new AsyncTask<Void, Void, Integer>() {
+            @Override
+            protected Integer doInBackground(Void... params) {
+                return helper.delete(ids);
+            }
+
+            @Override
+            protected void onPostExecute(Integer result) {
+                lastDeleted = ids;
+                invalidateOptionsMenu();
+                Toast.makeText(Main.this, getResources().getQuantityString(R.plurals.notes_deleted, result, result), Toast.LENGTH_SHORT).show();
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void undeleteNotes(final long[] ids) {
+        new AsyncTask<Void, Void, Integer>() {
+            @Override
+            protected Integer doInBackground(Void... params) {
+                return helper.undelete(ids);
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
     @Override
@@ -135,7 +279,8 @@ public class Main extends ListActivity {
 
             @Override
             public boolean onMenuItemActionCollapse(MenuItem item) {
-                getLoaderManager().restartLoader(0, null, callback);
+                searchEngine.reset();
+                searchEngine.refresh();
                 return true;
             }
         });
@@ -147,13 +292,7 @@ public class Main extends ListActivity {
 
             @Override
             public boolean onQueryTextChange(String newText) {
-                if (newText.length() == 0) {
-                    getLoaderManager().restartLoader(0, null, callback);
-                } else {
-                    Bundle args = new Bundle(1);
-                    args.putString("query", newText);
-                    getLoaderManager().restartLoader(0, args, callback);
-                }
+                searchEngine.submit(newText);
                 return true;
             }
         });
@@ -164,69 +303,265 @@ public class Main extends ListActivity {
     protected void onActivityResult(int requestCode, int resultCode, final Intent data) {
         if (resultCode == RESULT_OK) {
             switch (requestCode) {
-                case 0:
-                    if (search.isActionViewExpanded()) {
-                        Bundle args = new Bundle(1);
-                        args.putString("query", ((SearchView) search.getActionView()).getQuery().toString());
-                        getLoaderManager().restartLoader(0, args, callback);
+                case 1:
+                    importFromJSON(data.getData());
+                    break;
+                case 2:
+                    exportAsJSON(data.getData());
+                    break;
+                case 4:
+                    dumpMetrics(data.getData());
+                    break;
+                case 5:
+                    backup(data.getData(), loadBackupWatermark());
+                    break;
+                case 6:
+                    backup(data.getData(), BinaryBackup.FULL);
+                    break;
+                case 7:
+                    List<Uri> uris = new ArrayList<>();
+                    ClipData clipData = data.getClipData();
+                    if (clipData != null) {
+                        for (int i = 0; i < clipData.getItemCount(); i++) {
+                            uris.add(clipData.getItemAt(i).getUri());
+                        }
                     } else {
-                        getLoaderManager().restartLoader(0, null, callback);
+                        uris.add(data.getData());
                     }
+                    restoreBackup(uris);
                     break;
-                case 1:
-                    new AsyncTask<Void, Void, Boolean>() {
-                        @Override
-                        protected Boolean doInBackground(Void... params) {
-                            try {
-                                return helper.restoreFromJSON(getApplication().getContentResolver().openInputStream(data.getData()));
-                            } catch (FileNotFoundException e) {
-                                throw new IllegalStateException(e);
-                            }
-                        }
+            }
+        }
+    }
 
+    private void importFromJSON(final Uri uri) {
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        final ProgressDialog dialog = showProgressDialog(R.string.action_import, cancellationSignal);
+        dialog.setIndeterminate(true);
+        dialog.setProgressNumberFormat(null);
+        dialog.setProgressPercentFormat(null);
+        final long start = SystemClock.elapsedRealtime();
+        new AsyncTask<Void, Long, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                try {
+                    return helper.restoreFromJSON(getApplication().getContentResolver().openInputStream(uri), DatabaseHelper.DEFAULT_IMPORT_BATCH_SIZE, true, new DatabaseHelper.ProgressListener() {
                         @Override
-                        protected void onPostExecute(Boolean result) {
-                            if (result) {
-                                getLoaderManager().restartLoader(0, null, callback);
-                                Toast.makeText(Main.this, R.string.import_success, Toast.LENGTH_SHORT).show();
-                            } else {
-                                Toast.makeText(Main.this, R.string.import_fail, Toast.LENGTH_SHORT).show();
-                            }
-                        }
-                    }.execute();
-                    break;
-                case 2:
-                    new AsyncTask<Void, Void, Boolean>() {
-                        @Override
-                        protected Boolean doInBackground(Void... params) {
-                            try {
-                                return helper.dumpAsJSON(getContentResolver().openOutputStream(data.getData(), "w"));
-                            } catch (FileNotFoundException e) {
-                                throw new IllegalStateException(e);
-                            }
+                        public void onProgress(long done, long total) {
+                            publishProgress(done);
                         }
+                    }, cancellationSignal);
+                } catch (FileNotFoundException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+
+            @Override
+            protected void onProgressUpdate(Long... values) {
+                long elapsed = Math.max(SystemClock.elapsedRealtime() - start, 1);
+                dialog.setMessage(getString(R.string.import_progress, values[0], values[0] * 1000 / elapsed));
+            }
+
+            @Override
+            protected void onPostExecute(Boolean result) {
+                dialog.dismiss();
+                if (result) {
+                    Toast.makeText(Main.this, R.string.import_success, Toast.LENGTH_SHORT).show();
+                } else {
+                    Toast.makeText(Main.this, R.string.import_fail, Toast.LENGTH_SHORT).show();
+                }
+            }
+        }.execute();
+    }
 
+    private void exportAsJSON(final Uri uri) {
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        final ProgressDialog dialog = showProgressDialog(R.string.action_export, cancellationSignal);
+        new AsyncTask<Void, Long, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                try {
+                    return helper.dumpAsJSON(getContentResolver().openOutputStream(uri, "w"), new DatabaseHelper.ProgressListener() {
                         @Override
-                        protected void onPostExecute(Boolean result) {
-                            if (result) {
-                                Toast.makeText(Main.this, R.string.export_success, Toast.LENGTH_SHORT).show();
-                            } else {
-                                Toast.makeText(Main.this, R.string.export_fail, Toast.LENGTH_SHORT).show();
-                            }
+                        public void onProgress(long done, long total) {
+                            publishProgress(done, total);
                         }
-                    }.execute();
-                    break;
+                    }, cancellationSignal);
+                } catch (FileNotFoundException e) {
+                    throw new IllegalStateException(e);
+                }
             }
+
+            @Override
+            protected void onProgressUpdate(Long... values) {
+                dialog.setMax((int) (long) values[1]);
+                dialog.setProgress((int) (long) values[0]);
+            }
+
+            @Override
+            protected void onPostExecute(Boolean result) {
+                dialog.dismiss();
+                if (result) {
+                    Toast.makeText(Main.this, R.string.export_success, Toast.LENGTH_SHORT).show();
+                } else {
+                    Toast.makeText(Main.this, R.string.export_fail, Toast.LENGTH_SHORT).show();
+                }
+            }
+        }.execute();
+    }
+
+    private BinaryBackup.Watermark loadBackupWatermark() {
+        SharedPreferences preferences = getPreferences(MODE_PRIVATE);
+        if (!preferences.contains("backup_watermark_time")) {
+            return BinaryBackup.FULL;
         }
+        return new BinaryBackup.Watermark(preferences.getLong("backup_watermark_time", 0), preferences.getLong("backup_watermark_id", 0));
+    }
+
+    private void backup(final Uri uri, final BinaryBackup.Watermark base) {
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        final ProgressDialog dialog = showProgressDialog(R.string.action_backup, cancellationSignal);
+        dialog.setIndeterminate(true);
+        dialog.setProgressNumberFormat(null);
+        dialog.setProgressPercentFormat(null);
+        new AsyncTask<Void, Void, BinaryBackup.Watermark>() {
+            @Override
+            protected BinaryBackup.Watermark doInBackground(Void... params) {
+                try {
+                    return helper.dumpAsBinary(getContentResolver().openOutputStream(uri, "w"), base, null, cancellationSignal);
+                } catch (FileNotFoundException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+
+            @Override
+            protected void onPostExecute(BinaryBackup.Watermark result) {
+                dialog.dismiss();
+                if (result != null) {
+                    getPreferences(MODE_PRIVATE).edit()
+                            .putLong("backup_watermark_time", result.time)
+                            .putLong("backup_watermark_id", result.id)
+                            .apply();
+                    Toast.makeText(Main.this, R.string.backup_success, Toast.LENGTH_SHORT).show();
+                } else {
+                    Toast.makeText(Main.this, R.string.backup_fail, Toast.LENGTH_SHORT).show();
+                }
+            }
+        }.execute();
+    }
+
+    private void restoreBackup(final List<Uri> uris) {
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        final ProgressDialog dialog = showProgressDialog(R.string.action_restore_backup, cancellationSignal);
+        dialog.setIndeterminate(true);
+        dialog.setProgressNumberFormat(null);
+        dialog.setProgressPercentFormat(null);
+        final long start = SystemClock.elapsedRealtime();
+        new AsyncTask<Void, Long, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                List<InputStream> streams = new ArrayList<>(uris.size());
+                try {
+                    for (Uri uri : uris) {
+                        streams.add(getContentResolver().openInputStream(uri));
+                    }
+                } catch (FileNotFoundException e) {
+                    throw new IllegalStateException(e);
+                }
+                return helper.restoreFromBinary(streams, DatabaseHelper.DEFAULT_IMPORT_BATCH_SIZE, new DatabaseHelper.ProgressListener() {
+                    @Override
+                    public void onProgress(long done, long total) {
+                        publishProgress(done);
+                    }
+                }, cancellationSignal);
+            }
+
+            @Override
+            protected void onProgressUpdate(Long... values) {
+                long elapsed = Math.max(SystemClock.elapsedRealtime() - start, 1);
+                dialog.setMessage(getString(R.string.import_progress, values[0], values[0] * 1000 / elapsed));
+            }
+
+            @Override
+            protected void onPostExecute(Boolean result) {
+                dialog.dismiss();
+                if (result) {
+                    Toast.makeText(Main.this, R.string.import_success, Toast.LENGTH_SHORT).show();
+                } else {
+                    Toast.makeText(Main.this, R.string.import_fail, Toast.LENGTH_SHORT).show();
+                }
+            }
+        }.execute();
+    }
+
+    private void dumpMetrics(final Uri uri) {
+        new AsyncTask<Void, Void, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                try (Writer writer = new BufferedWriter(new OutputStreamWriter(getContentResolver().openOutputStream(uri, "w"), StandardCharsets.UTF_8))) {
+                    writer.write("Search cache: " + searchEngine.getHitCount() + " hits, " + searchEngine.getMissCount() + " misses\n");
+                    helper.dumpMetrics(writer);
+                    return true;
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Boolean result) {
+                if (result) {
+                    Toast.makeText(Main.this, R.string.export_success, Toast.LENGTH_SHORT).show();
+                } else {
+                    Toast.makeText(Main.this, R.string.export_fail, Toast.LENGTH_SHORT).show();
+                }
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private ProgressDialog showProgressDialog(int title, final CancellationSignal cancellationSignal) {
+        ProgressDialog dialog = new ProgressDialog(this);
+        dialog.setTitle(title);
+        dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        dialog.setCancelable(false);
+        dialog.setButton(DialogInterface.BUTTON_NEGATIVE, getString(android.R.string.cancel), new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                cancellationSignal.cancel();
+            }
+        });
+        dialog.show();
+        return dialog;
+    }
+
+    private Intent benchmarkIntent() {
+        return new Intent().setClassName(this, "simple.note.BenchmarkActivity");
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(R.id.item_undo_delete).setVisible(lastDeleted != null);
+        menu.findItem(R.id.item_rank_by_relevance).setChecked(getPreferences(MODE_PRIVATE).getBoolean("rank_by_relevance", false));
+        menu.findItem(R.id.item_benchmark).setVisible(getPackageManager().resolveActivity(benchmarkIntent(), 0) != null);
+        return super.onPrepareOptionsMenu(menu);
     }
 
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
+            case R.id.item_undo_delete:
+                undeleteNotes(lastDeleted);
+                lastDeleted = null;
+                invalidateOptionsMenu();
+                return true;
             case R.id.new_note:
                 Intent intent = new Intent(this, NoteDetailActivity.class);
                 startActivityForResult(intent, 0);
                 return true;
+            case R.id.item_rank_by_relevance:
+                getPreferences(MODE_PRIVATE).edit().putBoolean("rank_by_relevance", !item.isChecked()).apply();
+                item.setChecked(!item.isChecked());
+                searchEngine.refresh();
+                return true;
             case R.id.item_export:
                 startActivityForResult(new Intent(Intent.ACTION_CREATE_DOCUMENT)
                         .addCategory(Intent.CATEGORY_OPENABLE)
@@ -238,6 +573,31 @@ public class Main extends ListActivity {
             case R.id.item_import:
                 startActivityForResult(new Intent(Intent.ACTION_GET_CONTENT).addCategory(Intent.CATEGORY_OPENABLE).setType("*/*"), 1);
                 return true;
+            case R.id.item_backup:
+            case R.id.item_full_backup:
+                boolean full = item.getItemId() == R.id.item_full_backup || loadBackupWatermark().isFull();
+                startActivityForResult(new Intent(Intent.ACTION_CREATE_DOCUMENT)
+                        .addCategory(Intent.CATEGORY_OPENABLE)
+                        .setType("application/octet-stream")
+                        .putExtra(Intent.EXTRA_TITLE, DateUtils.formatDateTime(this,
+                                System.currentTimeMillis(),
+                                DateUtils.FORMAT_SHOW_YEAR | DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME) + (full ? ".full.snbk" : ".snbk")), full ? 6 : 5);
+                return true;
+            case R.id.item_restore_backup:
+                startActivityForResult(new Intent(Intent.ACTION_OPEN_DOCUMENT)
+                        .addCategory(Intent.CATEGORY_OPENABLE)
+                        .setType("*/*")
+                        .putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true), 7);
+                return true;
+            case R.id.item_benchmark:
+                startActivity(benchmarkIntent());
+                return true;
+            case R.id.item_metrics:
+                startActivityForResult(new Intent(Intent.ACTION_CREATE_DOCUMENT)
+                        .addCategory(Intent.CATEGORY_OPENABLE)
+                        .setType("text/plain")
+                        .putExtra(Intent.EXTRA_TITLE, "metrics-" + System.currentTimeMillis() + ".txt"), 4);
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
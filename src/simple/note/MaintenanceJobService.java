@@ -0,0 +1,29 @@
+package simple.note;
+
+import android.annotation.TargetApi;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.os.Build;
+
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class MaintenanceJobService extends JobService {
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        new Thread("MaintenanceJobService") {
+            @Override
+            public void run() {
+                try {
+                    MaintenanceService.run(MaintenanceJobService.this);
+                } finally {
+                    jobFinished(params, false);
+                }
+            }
+        }.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        return false;
+    }
+}
@@ -0,0 +1,96 @@
+package simple.note;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+
+public class MaintenanceService extends IntentService {
+    private static final long MIN_INTERVAL = DateUtils.DAY_IN_MILLIS;
+    private static final long OPTIMIZE_INTERVAL = 7 * DateUtils.DAY_IN_MILLIS;
+    private static final long IDLE_DELAY = 30 * DateUtils.MINUTE_IN_MILLIS;
+    private static final int JOB_ID = 1;
+
+    public MaintenanceService() {
+        super("MaintenanceService");
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null || battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) == 0) {
+            return;
+        }
+        if (isScreenOn(this)) {
+            arm(this);
+            return;
+        }
+        run(this);
+    }
+
+    static void run(Context context) {
+        SharedPreferences preferences = context.getSharedPreferences("maintenance", MODE_PRIVATE);
+        long now = System.currentTimeMillis();
+        if (now - preferences.getLong("last_run", 0) < MIN_INTERVAL) {
+            return;
+        }
+        boolean optimize = now - preferences.getLong("last_optimize", 0) >= OPTIMIZE_INTERVAL;
+        String report = DatabaseHelper.getInstance(context).maintain(optimize);
+        SharedPreferences.Editor editor = preferences.edit()
+                .putLong("last_run", now)
+                .putString("last_report", report);
+        if (optimize) {
+            editor.putLong("last_optimize", now);
+        }
+        editor.apply();
+    }
+
+    public static void schedule(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_ID) {
+                return;
+            }
+        }
+        scheduler.schedule(new JobInfo.Builder(JOB_ID, new ComponentName(context, MaintenanceJobService.class))
+                .setRequiresCharging(true)
+                .setRequiresDeviceIdle(true)
+                .setPeriodic(MIN_INTERVAL)
+                .build());
+    }
+
+    private static void arm(Context context) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent operation = PendingIntent.getService(context, 0, new Intent(context, MaintenanceService.class), PendingIntent.FLAG_UPDATE_CURRENT);
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + IDLE_DELAY, operation);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static boolean isScreenOn(Context context) {
+        return ((PowerManager) context.getSystemService(Context.POWER_SERVICE)).isScreenOn();
+    }
+
+    public static class PowerConnectedReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                arm(context);
+            }
+        }
+    }
+}
@@ -5,12 +5,9 @@ import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.provider.BaseColumns;
-import android.text.Spannable;
-import android.text.SpannableString;
-import android.text.style.URLSpan;
-import android.text.util.Linkify;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.widget.EditText;
@@ -18,7 +15,8 @@ import android.widget.EditText;
 public class NoteDetailActivity extends Activity {
     private DatabaseHelper helper;
     private EditText text;
-    private long id;
+    private Autosave autosave;
+    private boolean loaded;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -27,10 +25,70 @@ public class NoteDetailActivity extends Activity {
         getActionBar().setDisplayHomeAsUpEnabled(true);
         setContentView(R.layout.layout_note_detail);
         text = (EditText) findViewById(android.R.id.text1);
-        id = getIntent().getLongExtra(BaseColumns._ID, -1);
-        if (id != -1) {
-            text.setText(helper.getContentOfOneRecord(id));
+        autosave = (Autosave) getLastNonConfigurationInstance();
+        final long id;
+        if (autosave != null) {
+            autosave.attach(text);
+            id = autosave.getId();
+        } else {
+            id = savedInstanceState != null
+                    ? savedInstanceState.getLong(BaseColumns._ID, -1)
+                    : getIntent().getLongExtra(BaseColumns._ID, -1);
+            autosave = new Autosave(helper, id, text);
         }
+        if (id != -1 && (savedInstanceState == null || !savedInstanceState.getBoolean("loaded"))) {
+            text.setEnabled(false);
+            text.setHint(R.string.loading);
+            new AsyncTask<Void, Void, String>() {
+                @Override
+                protected String doInBackground(Void... params) {
+                    return helper.getContentOfOneRecord(id);
+                }
+
+                @Override
+                protected void onPostExecute(String content) {
+                    if (isDestroyed()) {
+                        return;
+                    }
+                    text.setText(content);
+                    text.setHint(null);
+                    text.setEnabled(true);
+                    loaded = true;
+                    autosave.start();
+                }
+            }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        } else {
+            loaded = true;
+            autosave.start();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        autosave.flush();
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        autosave.flush();
+        outState.putLong(BaseColumns._ID, autosave.getId());
+        outState.putBoolean("loaded", loaded);
+    }
+
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        return autosave;
+    }
+
+    @Override
+    public void onBackPressed() {
+        autosave.flush();
+        if (autosave.hasChanges()) {
+            setResult(RESULT_OK);
+        }
+        super.onBackPressed();
     }
 
     @Override
@@ -43,36 +101,53 @@ public class NoteDetailActivity extends Activity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case android.R.id.home:
-                if (id == -1) {
-                    helper.insert(text.getText().toString());
-                } else {
-                    helper.update(id, text.getText().toString());
-                }
+                autosave.flush();
                 setResult(RESULT_OK);
                 finish();
                 return true;
             case R.id.linkify:
-                Spannable spannable = new SpannableString(text.getText());
-                Linkify.addLinks(spannable, Linkify.ALL);
-                URLSpan[] spans = spannable.getSpans(0, spannable.length(), URLSpan.class);
-                final String[] urls = new String[spans.length + 1];
-                urls[0] = getString(R.string.treat_all_as_link);
-                for (int i = 0; i < spans.length; i++) {
-                    urls[i + 1] = spans[i].getURL();
-                }
-                new AlertDialog.Builder(this).setItems(urls, new DialogInterface.OnClickListener() {
+                final long id = autosave.getId();
+                final boolean dirty = autosave.isDirty();
+                final String content = text.getText().toString();
+                new AsyncTask<Void, Void, String[]>() {
+                    @Override
+                    protected String[] doInBackground(Void... params) {
+                        String[] links = dirty || id == -1 ? null : helper.queryLinks(id);
+                        if (links == null) {
+                            links = Autosave.extractLinks(content);
+                            if (!dirty && id != -1) {
+                                helper.replaceLinks(id, content, links);
+                            }
+                        }
+                        return links;
+                    }
+
                     @Override
-                    public void onClick(DialogInterface dialog, int which) {
-                        if (which == 0) {
-                            startActivity(new Intent(Intent.ACTION_VIEW, Uri.parse(text.getText().toString())));
-                        } else {
-                            startActivity(new Intent(Intent.ACTION_VIEW, Uri.parse(urls[which])));
+                    protected void onPostExecute(String[] links) {
+                        if (!isFinishing()) {
+                            showLinks(links);
                         }
                     }
-                }).setNegativeButton(android.R.string.cancel, null).show();
+                }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
                 return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
     }
+
+    private void showLinks(String[] links) {
+        final String[] urls = new String[links.length + 1];
+        urls[0] = getString(R.string.treat_all_as_link);
+        System.arraycopy(links, 0, urls, 1, links.length);
+        new AlertDialog.Builder(this).setItems(urls, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                if (which == 0) {
+                    startActivity(new Intent(Intent.ACTION_VIEW, Uri.parse(text.getText().toString())));
+                } else {
+                    startActivity(new Intent(Intent.ACTION_VIEW, Uri.parse(urls[which])));
+                }
+            }
+        }).setNegativeButton(android.R.string.cancel, null).show();
+    }
 }
\ No newline at end of file
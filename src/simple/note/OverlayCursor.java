@@ -0,0 +1,197 @@
+package simple.note;
+
+import android.database.AbstractCursor;
+import android.database.AbstractWindowedCursor;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+class OverlayCursor extends AbstractCursor {
+    private final Cursor[] pages;
+    private final int[] starts;
+    private final List<Object> rows;
+    private Cursor base;
+
+    OverlayCursor(Cursor first) {
+        pages = new Cursor[]{first};
+        starts = new int[]{0};
+        rows = new ArrayList<>(first.getCount());
+        for (int i = 0; i < first.getCount(); i++) {
+            rows.add(i);
+        }
+        base = first;
+    }
+
+    private OverlayCursor(Cursor[] pages, int[] starts, List<Object> rows) {
+        this.pages = pages;
+        this.starts = starts;
+        this.rows = rows;
+        base = pages[0];
+    }
+
+    OverlayCursor append(Cursor page, Set<Long> hidden) {
+        Cursor last = pages[pages.length - 1];
+        int from = starts[starts.length - 1] + last.getCount();
+        Cursor[] extendedPages = Arrays.copyOf(pages, pages.length + 1);
+        extendedPages[pages.length] = page;
+        int[] extendedStarts = Arrays.copyOf(starts, starts.length + 1);
+        extendedStarts[starts.length] = from;
+        List<Object> appended = new ArrayList<>(rows.size() + page.getCount());
+        appended.addAll(rows);
+        for (int i = 0; i < page.getCount(); i++) {
+            page.moveToPosition(i);
+            if (!hidden.contains(page.getLong(0))) {
+                appended.add(from + i);
+            }
+        }
+        return new OverlayCursor(extendedPages, extendedStarts, appended);
+    }
+
+    boolean remove(long id) {
+        for (int i = 0; i < rows.size(); i++) {
+            if (longAt(i, 0) == id) {
+                rows.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void insert(Object[] row) {
+        long lastWriteTimeUTC = (Long) row[2];
+        long id = (Long) row[0];
+        int low = 0;
+        int high = rows.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            long time = longAt(middle, 2);
+            if (time > lastWriteTimeUTC || time == lastWriteTimeUTC && longAt(middle, 0) > id) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        rows.add(low, row);
+    }
+
+    private long longAt(int position, int column) {
+        Object row = rows.get(position);
+        if (row instanceof Object[]) {
+            return ((Number) ((Object[]) row)[column]).longValue();
+        }
+        return moveBase((Integer) row).getLong(column);
+    }
+
+    private Cursor moveBase(int position) {
+        int page = Arrays.binarySearch(starts, position);
+        if (page < 0) {
+            page = -page - 2;
+        }
+        while (position - starts[page] >= pages[page].getCount()) {
+            page++;
+        }
+        base = pages[page];
+        base.moveToPosition(position - starts[page]);
+        return base;
+    }
+
+    private Object[] current() {
+        Object row = rows.get(getPosition());
+        if (row instanceof Object[]) {
+            return (Object[]) row;
+        }
+        moveBase((Integer) row);
+        return null;
+    }
+
+    @Override
+    public int getCount() {
+        return rows.size();
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return base.getColumnNames();
+    }
+
+    @Override
+    public String getString(int column) {
+        Object[] row = current();
+        if (row == null) {
+            return base.getString(column);
+        }
+        return row[column] == null ? null : row[column].toString();
+    }
+
+    @Override
+    public void copyStringToBuffer(int column, CharArrayBuffer buffer) {
+        Object[] row = current();
+        if (row == null && base instanceof AbstractWindowedCursor) {
+            base.copyStringToBuffer(column, buffer);
+            return;
+        }
+        String value = row == null ? base.getString(column) : row[column] == null ? null : row[column].toString();
+        if (value == null) {
+            buffer.sizeCopied = 0;
+            return;
+        }
+        int length = value.length();
+        if (buffer.data == null || buffer.data.length < length) {
+            buffer.data = new char[length];
+        }
+        value.getChars(0, length, buffer.data, 0);
+        buffer.sizeCopied = length;
+    }
+
+    @Override
+    public short getShort(int column) {
+        Object[] row = current();
+        return row == null ? base.getShort(column) : ((Number) row[column]).shortValue();
+    }
+
+    @Override
+    public int getInt(int column) {
+        Object[] row = current();
+        return row == null ? base.getInt(column) : ((Number) row[column]).intValue();
+    }
+
+    @Override
+    public long getLong(int column) {
+        Object[] row = current();
+        return row == null ? base.getLong(column) : ((Number) row[column]).longValue();
+    }
+
+    @Override
+    public float getFloat(int column) {
+        Object[] row = current();
+        return row == null ? base.getFloat(column) : ((Number) row[column]).floatValue();
+    }
+
+    @Override
+    public double getDouble(int column) {
+        Object[] row = current();
+        return row == null ? base.getDouble(column) : ((Number) row[column]).doubleValue();
+    }
+
+    @Override
+    public int getType(int column) {
+        Object[] row = current();
+        if (row == null) {
+            return base.getType(column);
+        }
+        if (row[column] == null) {
+            return FIELD_TYPE_NULL;
+        }
+        return row[column] instanceof Number ? FIELD_TYPE_INTEGER : FIELD_TYPE_STRING;
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        Object[] row = current();
+        return row == null ? base.isNull(column) : row[column] == null;
+    }
+}
@@ -0,0 +1,157 @@
+package simple.note;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.text.format.DateFormat;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+public class QueryMetrics {
+    private static final int BUCKETS = 25;
+    private static final int SLOW_QUERY_CAPACITY = 32;
+    private static final long SLOW_QUERY_THRESHOLD = 50 * 1000 * 1000;
+    private final Map<String, Histogram> histograms = new LinkedHashMap<>();
+    private final SlowQuery[] slowQueries = new SlowQuery[SLOW_QUERY_CAPACITY];
+    private int slowQueryCount;
+    private long ftsQueries;
+    private long ftsMatches;
+
+    public static long now() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    public void record(String operation, long start, long rows) {
+        record(operation, start, rows, null, null, null);
+    }
+
+    public void record(String operation, long start, long rows, SQLiteDatabase db, String sql, String[] args) {
+        long elapsed = recordBulk(operation, start, rows);
+        if (elapsed >= SLOW_QUERY_THRESHOLD) {
+            SlowQuery slowQuery = new SlowQuery(operation, elapsed, rows, sql, sql == null ? null : explain(db, sql, args));
+            synchronized (this) {
+                slowQueries[slowQueryCount++ % SLOW_QUERY_CAPACITY] = slowQuery;
+            }
+        }
+    }
+
+    public long recordBulk(String operation, long start, long rows) {
+        long elapsed = now() - start;
+        synchronized (this) {
+            Histogram histogram = histograms.get(operation);
+            if (histogram == null) {
+                histogram = new Histogram();
+                histograms.put(operation, histogram);
+            }
+            histogram.add(elapsed, rows);
+        }
+        return elapsed;
+    }
+
+    public synchronized void recordMatches(long matches) {
+        ftsQueries++;
+        ftsMatches += matches;
+    }
+
+    private static String explain(SQLiteDatabase db, String sql, String[] args) {
+        StringBuilder plan = new StringBuilder();
+        try (Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args)) {
+            int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.append("    ").append(cursor.getString(detail)).append('\n');
+            }
+        } catch (RuntimeException e) {
+            plan.append("    ").append(e).append('\n');
+        }
+        return plan.toString();
+    }
+
+    public synchronized void dump(Writer writer) throws IOException {
+        writer.write(String.format(Locale.US, "%-24s %8s %10s %10s %10s %10s %10s%n",
+                "operation", "count", "rows", "mean us", "p50<= us", "p90<= us", "p99<= us"));
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            writer.write(String.format(Locale.US, "%-24s %8d %10d %10d %10d %10d %10d%n",
+                    entry.getKey(),
+                    histogram.count,
+                    histogram.rows,
+                    histogram.total / histogram.count / 1000,
+                    histogram.percentile(0.5),
+                    histogram.percentile(0.9),
+                    histogram.percentile(0.99)));
+            writer.write("   ");
+            for (int i = 0; i < BUCKETS; i++) {
+                if (histogram.buckets[i] != 0) {
+                    writer.write(String.format(Locale.US, " <=%d:%d", upperBound(i), histogram.buckets[i]));
+                }
+            }
+            writer.write('\n');
+        }
+        writer.write(String.format(Locale.US, "%nFTS: %d queries, %d matches%n", ftsQueries, ftsMatches));
+        writer.write(String.format(Locale.US, "%nSlow operations (>= %d ms), oldest first:%n", SLOW_QUERY_THRESHOLD / 1000000));
+        for (int i = Math.max(slowQueryCount - SLOW_QUERY_CAPACITY, 0); i < slowQueryCount; i++) {
+            SlowQuery slowQuery = slowQueries[i % SLOW_QUERY_CAPACITY];
+            writer.write(String.format(Locale.US, "%s %s %d ms, %d rows%n",
+                    DateFormat.format("yyyy-MM-dd HH:mm:ss", slowQuery.time),
+                    slowQuery.operation,
+                    slowQuery.elapsed / 1000000,
+                    slowQuery.rows));
+            if (slowQuery.sql != null) {
+                writer.write(slowQuery.sql.replaceAll("(?m)^", "    "));
+                writer.write('\n');
+                writer.write(slowQuery.plan);
+            }
+        }
+    }
+
+    private static long upperBound(int bucket) {
+        return (1L << bucket) - 1;
+    }
+
+    private static class Histogram {
+        final long[] buckets = new long[BUCKETS];
+        long count;
+        long total;
+        long rows;
+
+        void add(long elapsed, long rows) {
+            buckets[Math.min(64 - Long.numberOfLeadingZeros(elapsed / 1000), BUCKETS - 1)]++;
+            count++;
+            total += elapsed;
+            this.rows += rows;
+        }
+
+        long percentile(double fraction) {
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(BUCKETS - 1);
+        }
+    }
+
+    private static class SlowQuery {
+        final long time = System.currentTimeMillis();
+        final String operation;
+        final long elapsed;
+        final long rows;
+        final String sql;
+        final String plan;
+
+        SlowQuery(String operation, long elapsed, long rows, String sql, String plan) {
+            this.operation = operation;
+            this.elapsed = elapsed;
+            this.rows = rows;
+            this.sql = sql;
+            this.plan = plan;
+        }
+    }
+}
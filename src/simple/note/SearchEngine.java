@@ -0,0 +1,225 @@
+package simple.note;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SearchEngine {
+    private static final long DEBOUNCE_DELAY = 300;
+    private static final int MAX_RESULT_ROWS = 1000;
+    private static final int CACHE_SIZE = 4000;
+    private final DatabaseHelper helper;
+    private final Listener listener;
+    private final Handler handler = new Handler();
+    private String pendingQuery = "";
+    private final Runnable dispatch = new Runnable() {
+        @Override
+        public void run() {
+            listener.onQueryChanged(pendingQuery);
+        }
+    };
+    private final LruCache<String, Result> cache = new LruCache<String, Result>(CACHE_SIZE) {
+        @Override
+        protected int sizeOf(String key, Result value) {
+            return value.rows.length + 1;
+        }
+    };
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private String lastQuery;
+    private Result lastResult;
+
+    public SearchEngine(DatabaseHelper helper, Listener listener) {
+        this.helper = helper;
+        this.listener = listener;
+    }
+
+    public static String normalize(String query) {
+        return query.trim().replaceAll("\\s+", " ");
+    }
+
+    private static boolean isPlain(String query) {
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != ' ') {
+                return false;
+            }
+        }
+        for (String term : query.split(" ")) {
+            switch (term.toUpperCase()) {
+                case "AND":
+                case "OR":
+                case "NOT":
+                case "NEAR":
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    public void submit(String query) {
+        handler.removeCallbacks(dispatch);
+        pendingQuery = normalize(query);
+        if (pendingQuery.length() == 0) {
+            dispatch.run();
+        } else {
+            handler.postDelayed(dispatch, DEBOUNCE_DELAY);
+        }
+    }
+
+    public void refresh() {
+        handler.removeCallbacks(dispatch);
+        dispatch.run();
+    }
+
+    public void reset() {
+        handler.removeCallbacks(dispatch);
+        pendingQuery = "";
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public Cursor search(String query, CancellationSignal cancellationSignal) {
+        query = normalize(query);
+        long generation = helper.getWriteGeneration();
+        Result cached = cache.get(query);
+        if (cached != null && cached.generation == generation) {
+            hitCount.incrementAndGet();
+            return cached.newCursor();
+        }
+        missCount.incrementAndGet();
+        long[] candidates = null;
+        synchronized (this) {
+            if (lastResult != null && lastResult.generation == generation && query.startsWith(lastQuery) && isPlain(query)) {
+                candidates = lastResult.ids;
+            }
+        }
+        Cursor cursor = helper.search(query, candidates, cancellationSignal);
+        Result result = null;
+        try {
+            if (cursor.getCount() <= MAX_RESULT_ROWS) {
+                result = new Result(cursor, generation);
+                cursor.close();
+            }
+        } catch (RuntimeException e) {
+            cursor.close();
+            throw e;
+        }
+        synchronized (this) {
+            lastQuery = query;
+            lastResult = result;
+        }
+        if (result == null) {
+            return cursor;
+        }
+        cache.put(query, result);
+        return result.newCursor();
+    }
+
+    public Cursor searchRanked(String query, CancellationSignal cancellationSignal) {
+        query = normalize(query);
+        long[] ranked = helper.rankMatches(query, cancellationSignal);
+        RankedPages pages = new RankedPages(helper, query, ranked, 0);
+        Cursor firstPage = pages.next(cancellationSignal);
+        if (firstPage == null) {
+            firstPage = helper.queryRankedPage(query, ranked, 0, cancellationSignal);
+        }
+        return new RankedCursor(pages, firstPage);
+    }
+
+    public interface Listener {
+        void onQueryChanged(String query);
+    }
+
+    public static class RankedCursor extends CursorWrapper {
+        private final RankedPages pages;
+
+        RankedCursor(RankedPages pages, Cursor firstPage) {
+            super(firstPage);
+            this.pages = pages.copy();
+        }
+
+        public DatabaseHelper.PageSource nextPages() {
+            return pages.copy();
+        }
+    }
+
+    private static class RankedPages implements DatabaseHelper.PageSource {
+        private final DatabaseHelper helper;
+        private final String query;
+        private final long[] ranked;
+        private int consumed;
+
+        RankedPages(DatabaseHelper helper, String query, long[] ranked, int consumed) {
+            this.helper = helper;
+            this.query = query;
+            this.ranked = ranked;
+            this.consumed = consumed;
+        }
+
+        RankedPages copy() {
+            return new RankedPages(helper, query, ranked, consumed);
+        }
+
+        Cursor next(CancellationSignal cancellationSignal) {
+            if (consumed >= ranked.length) {
+                return null;
+            }
+            List<Cursor> slices = new ArrayList<>();
+            int count = 0;
+            while (consumed < ranked.length && count < DatabaseHelper.PAGE_SIZE) {
+                Cursor slice = helper.queryRankedPage(query, ranked, consumed, cancellationSignal);
+                consumed = Math.min(consumed + DatabaseHelper.PAGE_SIZE, ranked.length);
+                count += slice.getCount();
+                slices.add(slice);
+            }
+            return slices.size() == 1 ? slices.get(0) : new MergeCursor(slices.toArray(new Cursor[slices.size()]));
+        }
+
+        @Override
+        public Cursor loadPageAfter(int offset, long lastWriteTimeUTC, long id) {
+            return next(null);
+        }
+    }
+
+    private static class Result {
+        final long generation;
+        final String[] columns;
+        final long[] ids;
+        final Object[][] rows;
+
+        Result(Cursor cursor, long generation) {
+            this.generation = generation;
+            columns = cursor.getColumnNames();
+            ids = new long[cursor.getCount()];
+            rows = new Object[ids.length][];
+            while (cursor.moveToNext()) {
+                int position = cursor.getPosition();
+                ids[position] = cursor.getLong(0);
+                rows[position] = new Object[]{ids[position], cursor.getLong(1), cursor.getLong(2), cursor.getString(3)};
+            }
+        }
+
+        Cursor newCursor() {
+            MatrixCursor cursor = new MatrixCursor(columns, rows.length);
+            for (Object[] row : rows) {
+                cursor.addRow(row);
+            }
+            return cursor;
+        }
+    }
+}